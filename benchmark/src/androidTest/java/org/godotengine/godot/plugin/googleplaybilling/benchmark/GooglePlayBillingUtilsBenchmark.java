@@ -0,0 +1,137 @@
+/*************************************************************************/
+/*  GooglePlayBillingUtilsBenchmark.java                                 */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.benchmark;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.Purchase;
+
+import org.godotengine.godot.plugin.googleplaybilling.utils.CompactProductDetailsEncoder;
+import org.godotengine.godot.plugin.googleplaybilling.utils.GooglePlayBillingUtils;
+import org.godotengine.godot.plugin.googleplaybilling.utils.PurchaseIndex;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+@RunWith(Parameterized.class)
+public class GooglePlayBillingUtilsBenchmark {
+	@Rule
+	public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+	@Parameterized.Parameters(name = "catalogSize={0}")
+	public static Collection<Object[]> catalogSizes() {
+		return Arrays.asList(new Object[][] { { 1 }, { 10 }, { 100 }, { 1000 } });
+	}
+
+	private final int catalogSize;
+	private List<Purchase> purchases;
+	private List<ProductDetails> productDetails;
+	private List<ProductDetails.SubscriptionOfferDetails> subscriptionOfferDetails;
+
+	public GooglePlayBillingUtilsBenchmark(int catalogSize) {
+		this.catalogSize = catalogSize;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		purchases = SyntheticBillingData.createPurchases(catalogSize);
+		productDetails = SyntheticBillingData.createProductDetails(catalogSize);
+		subscriptionOfferDetails = SyntheticBillingData.createSubscriptionOfferDetails(catalogSize);
+	}
+
+	@Test
+	public void convertFromPurchaseArr() {
+		BenchmarkState state = benchmarkRule.getState();
+		while (state.keepRunning()) {
+			GooglePlayBillingUtils.convertFromPurchaseArr(purchases);
+		}
+	}
+
+	@Test
+	public void convertFromProductDetailsArr() {
+		BenchmarkState state = benchmarkRule.getState();
+		while (state.keepRunning()) {
+			GooglePlayBillingUtils.convertFromProductDetailsArr(productDetails);
+		}
+	}
+
+	// The legacy SkuDetails-shaped layouts go through the same schema conversion as the ones above.
+	@Test
+	public void convertPurchaseListToDictionaryObjectArray() {
+		BenchmarkState state = benchmarkRule.getState();
+		while (state.keepRunning()) {
+			GooglePlayBillingUtils.convertPurchaseListToDictionaryObjectArray(purchases);
+		}
+	}
+
+	@Test
+	public void convertProductDetailsListToDictionaryObjectArray() {
+		BenchmarkState state = benchmarkRule.getState();
+		while (state.keepRunning()) {
+			GooglePlayBillingUtils.convertProductDetailsListToDictionaryObjectArray(productDetails);
+		}
+	}
+
+	@Test
+	public void encodeCompactProductDetails() {
+		BenchmarkState state = benchmarkRule.getState();
+		while (state.keepRunning()) {
+			CompactProductDetailsEncoder.encode(productDetails);
+		}
+	}
+
+	@Test
+	public void convertFromSubscriptionOfferDetailsArr() {
+		BenchmarkState state = benchmarkRule.getState();
+		while (state.keepRunning()) {
+			GooglePlayBillingUtils.convertFromSubscriptionOfferDetailsArr(subscriptionOfferDetails);
+		}
+	}
+
+	// Measures the steady state of repeated queries: the index is reused, so existing
+	// tokens are replaced and catalogs beyond the index capacity cause evictions.
+	@Test
+	public void addPurchasesByPurchaseToken() {
+		PurchaseIndex purchaseIndex = new PurchaseIndex();
+		BenchmarkState state = benchmarkRule.getState();
+		while (state.keepRunning()) {
+			GooglePlayBillingUtils.addPurchasesByPurchaseToken(purchases, purchaseIndex);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*************************************************************************/
+/*  SyntheticBillingData.java                                            */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.benchmark;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.Purchase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds Purchase and ProductDetails objects from the same JSON the Play Store
+ * returns, so the conversion layer can be measured without a billing connection.
+ */
+public class SyntheticBillingData {
+	public static List<Purchase> createPurchases(int count) throws JSONException {
+		List<Purchase> purchases = new ArrayList<>(count);
+
+		for (int i = 0; i < count; i++) {
+			JSONObject json = new JSONObject();
+			json.put("orderId", "GPA.0000-0000-0000-" + i);
+			json.put("packageName", "org.godotengine.benchmark");
+			json.put("productIds", new JSONArray().put("product_" + i));
+			json.put("purchaseTime", 1700000000000L + i);
+			json.put("purchaseState", 0);
+			json.put("purchaseToken", "token_" + i + "_abcdefghijklmnopqrstuvwxyz0123456789");
+			json.put("quantity", 1);
+			json.put("acknowledged", i % 2 == 0);
+			json.put("autoRenewing", false);
+			json.put("obfuscatedAccountId", "account_" + i);
+
+			purchases.add(new Purchase(json.toString(), "signature_" + i));
+		}
+
+		return purchases;
+	}
+
+	public static List<ProductDetails> createProductDetails(int count) throws Exception {
+		Constructor<ProductDetails> constructor = ProductDetails.class.getDeclaredConstructor(String.class);
+		constructor.setAccessible(true);
+
+		List<ProductDetails> allProductDetails = new ArrayList<>(count);
+
+		for (int i = 0; i < count; i++) {
+			// Every other product is a subscription, so both offer layouts are exercised.
+			JSONObject json = i % 2 == 0 ? createInAppProductJson(i) : createSubscriptionProductJson(i);
+			allProductDetails.add(constructor.newInstance(json.toString()));
+		}
+
+		return allProductDetails;
+	}
+
+	public static List<ProductDetails.SubscriptionOfferDetails> createSubscriptionOfferDetails(int count) throws Exception {
+		Constructor<ProductDetails> constructor = ProductDetails.class.getDeclaredConstructor(String.class);
+		constructor.setAccessible(true);
+
+		JSONObject json = createProductJson(0, BillingClient.ProductType.SUBS);
+		JSONArray offers = new JSONArray();
+		for (int i = 0; i < count; i++) {
+			offers.put(createSubscriptionOfferJson(i));
+		}
+		json.put("subscriptionOfferDetails", offers);
+
+		return constructor.newInstance(json.toString()).getSubscriptionOfferDetails();
+	}
+
+	private static JSONObject createProductJson(int index, String productType) throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("productId", "product_" + index);
+		json.put("type", productType);
+		json.put("title", "Product " + index + " (Benchmark)");
+		json.put("name", "Product " + index);
+		json.put("description", "Synthetic product used by the conversion benchmarks.");
+		json.put("skuDetailsToken", "sku_details_token_" + index);
+		return json;
+	}
+
+	private static JSONObject createInAppProductJson(int index) throws JSONException {
+		JSONObject offer = new JSONObject();
+		offer.put("priceAmountMicros", 990000L + index);
+		offer.put("priceCurrencyCode", "USD");
+		offer.put("formattedPrice", "$0.99");
+
+		JSONObject json = createProductJson(index, BillingClient.ProductType.INAPP);
+		json.put("oneTimePurchaseOfferDetails", offer);
+		return json;
+	}
+
+	private static JSONObject createSubscriptionProductJson(int index) throws JSONException {
+		JSONObject json = createProductJson(index, BillingClient.ProductType.SUBS);
+		json.put("subscriptionOfferDetails", new JSONArray()
+				.put(createSubscriptionOfferJson(0))
+				.put(createSubscriptionOfferJson(1)));
+		return json;
+	}
+
+	private static JSONObject createSubscriptionOfferJson(int index) throws JSONException {
+		JSONObject trialPhase = new JSONObject();
+		trialPhase.put("priceAmountMicros", 0L);
+		trialPhase.put("priceCurrencyCode", "USD");
+		trialPhase.put("formattedPrice", "Free");
+		trialPhase.put("billingPeriod", "P1W");
+		trialPhase.put("recurrenceMode", 2);
+		trialPhase.put("billingCycleCount", 1);
+
+		JSONObject recurringPhase = new JSONObject();
+		recurringPhase.put("priceAmountMicros", 4990000L);
+		recurringPhase.put("priceCurrencyCode", "USD");
+		recurringPhase.put("formattedPrice", "$4.99");
+		recurringPhase.put("billingPeriod", "P1M");
+		recurringPhase.put("recurrenceMode", 1);
+		recurringPhase.put("billingCycleCount", 0);
+
+		JSONObject offer = new JSONObject();
+		offer.put("basePlanId", "monthly");
+		offer.put("offerId", "offer_" + index);
+		offer.put("offerIdToken", "offer_token_" + index);
+		offer.put("offerTags", new JSONArray().put("tag_" + index));
+		offer.put("pricingPhases", new JSONArray().put(trialPhase).put(recurringPhase));
+		return offer;
+	}
+}
@@ -0,0 +1,271 @@
+/*************************************************************************/
+/*  BillingConnectionManager.java                                        */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.godotengine.godot.plugin.googleplaybilling.backend.BillingBackend;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingResult;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Keeps the billing backend connected once startConnection() has been called. Lost
+ * connections are re-established with jittered exponential backoff, and requests
+ * issued while disconnected are queued and run in order once setup succeeds.
+ * With auto-reconnect off, requests are only queued while a connection is being set
+ * up; otherwise they fail with SERVICE_DISCONNECTED.
+ */
+public class BillingConnectionManager {
+	public interface Request {
+		void run();
+		void fail(BillingResult billingResult);
+	}
+
+	public static final int MAX_QUEUED_REQUESTS = 32;
+	private static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+	private static final long MAX_RETRY_DELAY_MILLIS = 60 * 1000;
+
+	private final BillingBackend billingBackend;
+	private final BillingClientStateListener listener;
+	private final BillingMetrics metrics;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final Random random = new Random();
+	private final ArrayDeque<Request> queuedRequests = new ArrayDeque<>();
+
+	private boolean connectionRequested;
+	private boolean connecting;
+	private boolean reconnectScheduled;
+	// Why the last setup attempt failed without a retry, reported to requests issued afterwards.
+	private BillingResult setupFailure;
+	private volatile boolean autoReconnect = true;
+	private int retryAttempt;
+	private long connectStartNanos;
+
+	private final Runnable reconnectRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (BillingConnectionManager.this) {
+				reconnectScheduled = false;
+			}
+			connect();
+		}
+	};
+
+	public BillingConnectionManager(BillingBackend billingBackend, BillingClientStateListener listener, BillingMetrics metrics) {
+		this.billingBackend = billingBackend;
+		this.listener = listener;
+		this.metrics = metrics;
+	}
+
+	public void setAutoReconnect(boolean autoReconnect) {
+		boolean failQueued;
+		synchronized (this) {
+			this.autoReconnect = autoReconnect;
+			if (!autoReconnect) {
+				cancelReconnect();
+			}
+			failQueued = !autoReconnect && !connecting;
+		}
+		if (failQueued) {
+			failQueuedRequests(disconnectedResult("Billing client is disconnected and auto-reconnect is off"));
+		}
+	}
+
+	public void startConnection() {
+		synchronized (this) {
+			connectionRequested = true;
+			retryAttempt = 0;
+			setupFailure = null;
+			cancelReconnect();
+		}
+		connect();
+	}
+
+	public void endConnection() {
+		synchronized (this) {
+			connectionRequested = false;
+			connecting = false;
+			cancelReconnect();
+		}
+		billingBackend.endConnection();
+		failQueuedRequests(disconnectedResult("Billing client connection was ended"));
+	}
+
+	public synchronized int getQueuedRequestCount() {
+		return queuedRequests.size();
+	}
+
+	// Runs the request right away when connected. Otherwise it is held until the
+	// connection is (re-)established, or failed when the queue is full or no
+	// connection attempt is in flight or scheduled.
+	public void execute(Request request) {
+		boolean runNow;
+		BillingResult rejection = null;
+
+		synchronized (this) {
+			runNow = billingBackend.isReady() || !connectionRequested;
+			if (!runNow) {
+				if (!connecting && !reconnectScheduled) {
+					if (setupFailure != null) {
+						rejection = setupFailure;
+					} else if (!autoReconnect) {
+						rejection = disconnectedResult("Billing client is disconnected and auto-reconnect is off");
+					} else {
+						rejection = disconnectedResult("Billing client is disconnected and no reconnect is scheduled");
+					}
+				} else if (queuedRequests.size() >= MAX_QUEUED_REQUESTS) {
+					rejection = disconnectedResult("Billing request queue is full");
+				} else {
+					queuedRequests.add(request);
+					metrics.recordQueuedRequests(queuedRequests.size());
+				}
+			}
+		}
+
+		if (runNow) {
+			request.run();
+		} else if (rejection != null) {
+			request.fail(rejection);
+		}
+	}
+
+	private void connect() {
+		synchronized (this) {
+			if (!connectionRequested || connecting || billingBackend.isReady()) return;
+			connecting = true;
+			connectStartNanos = BillingMetrics.start();
+		}
+		billingBackend.startConnection(stateListener);
+	}
+
+	private synchronized void scheduleReconnect() {
+		if (!connectionRequested || !autoReconnect) return;
+
+		long delay = Math.min(MAX_RETRY_DELAY_MILLIS, INITIAL_RETRY_DELAY_MILLIS << Math.min(retryAttempt, 16));
+		// Full jitter in the upper half of the window, so clients don't reconnect in lockstep.
+		delay = delay / 2 + (long)(random.nextDouble() * (delay / 2));
+		retryAttempt++;
+		metrics.recordReconnect();
+
+		handler.removeCallbacks(reconnectRunnable);
+		handler.postDelayed(reconnectRunnable, delay);
+		reconnectScheduled = true;
+	}
+
+	private void cancelReconnect() {
+		handler.removeCallbacks(reconnectRunnable);
+		reconnectScheduled = false;
+	}
+
+	private void drainQueuedRequests() {
+		while (true) {
+			Request request;
+			synchronized (this) {
+				if (!billingBackend.isReady()) return;
+				request = queuedRequests.poll();
+				metrics.recordQueuedRequests(queuedRequests.size());
+			}
+			if (request == null) return;
+			request.run();
+		}
+	}
+
+	private void failQueuedRequests(BillingResult billingResult) {
+		while (true) {
+			Request request;
+			synchronized (this) {
+				request = queuedRequests.poll();
+				metrics.recordQueuedRequests(queuedRequests.size());
+			}
+			if (request == null) return;
+			request.fail(billingResult);
+		}
+	}
+
+	private static BillingResult disconnectedResult(String debugMessage) {
+		return BillingResult.newBuilder()
+				.setResponseCode(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED)
+				.setDebugMessage(debugMessage)
+				.build();
+	}
+
+	private final BillingClientStateListener stateListener = new BillingClientStateListener() {
+		@Override
+		public void onBillingServiceDisconnected() {
+			// The reconnect is scheduled in the same step, so no request slips in between
+			// and is rejected for lack of one.
+			synchronized (BillingConnectionManager.this) {
+				connecting = false;
+				scheduleReconnect();
+			}
+			metrics.recordDisconnect();
+			listener.onBillingServiceDisconnected();
+			if (!autoReconnect) {
+				failQueuedRequests(disconnectedResult("Billing client is disconnected and auto-reconnect is off"));
+			}
+		}
+		@Override
+		public void onBillingSetupFinished(BillingResult billingResult) {
+			int responseCode = billingResult.getResponseCode();
+			long startNanos;
+			boolean failQueued = false;
+			synchronized (BillingConnectionManager.this) {
+				connecting = false;
+				startNanos = connectStartNanos;
+				if (responseCode == BillingClient.BillingResponseCode.OK) {
+					retryAttempt = 0;
+					setupFailure = null;
+				} else if (BillingResponses.isRetryable(responseCode) && autoReconnect) {
+					scheduleReconnect();
+				} else {
+					setupFailure = billingResult;
+					failQueued = true;
+				}
+			}
+			metrics.record(BillingMetrics.START_CONNECTION, startNanos, billingResult);
+
+			// Queued requests go first, so they still run in the order they were issued
+			// relative to whatever the listener starts.
+			if (responseCode == BillingClient.BillingResponseCode.OK) {
+				drainQueuedRequests();
+			} else if (failQueued) {
+				failQueuedRequests(billingResult);
+			}
+			listener.onBillingSetupFinished(billingResult);
+		}
+	};
+}
@@ -0,0 +1,264 @@
+/*************************************************************************/
+/*  BillingJournal.java                                                  */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import org.godotengine.godot.Dictionary;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Fixed-size ring buffer of billing events (connection changes, requests, responses
+ * and purchase state transitions) kept for support. Recording an event only writes
+ * primitives and an existing String reference into preallocated arrays. The journal
+ * can optionally be appended to a rotating binary file.
+ *
+ * File layout (big-endian): u32 magic "GPBJ", u8 version, then per event
+ * i64 time_ms, u8 event, i8 operation, i32 request_id, i32 code, i32 detail length
+ * and the detail's UTF-8 bytes.
+ */
+public class BillingJournal {
+	public static final int EVENT_SETUP_FINISHED = 0;
+	public static final int EVENT_DISCONNECTED = 1;
+	public static final int EVENT_REQUEST = 2;
+	public static final int EVENT_RESPONSE = 3;
+	public static final int EVENT_REQUEST_TIMED_OUT = 4;
+	public static final int EVENT_PURCHASE = 5;
+	public static final int EVENT_PURCHASE_REMOVED = 6;
+	public static final int EVENT_MESSAGE = 7;
+
+	private static final String[] EVENT_NAMES = {
+		"setup_finished",
+		"disconnected",
+		"request",
+		"response",
+		"request_timed_out",
+		"purchase",
+		"purchase_removed",
+		"message",
+	};
+
+	public static final int NO_OPERATION = -1;
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private static final int FILE_MAGIC = 0x4750424a; // "GPBJ"
+	private static final int FILE_VERSION = 2;
+	private static final long MAX_FILE_BYTES = 256 * 1024;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File journalFile;
+	private final File rotatedJournalFile;
+	// Created on the first flush, so a plugin that never writes the file never starts a thread.
+	private ExecutorService ioExecutor;
+
+	private long[] timesMillis;
+	private byte[] events;
+	private byte[] operations;
+	private int[] requestIds;
+	private int[] codes;
+	private String[] details;
+	// Number of events ever recorded, and how many of them were written to the file.
+	private long recordedCount;
+	private long flushedCount;
+	private volatile boolean fileEnabled;
+
+	public BillingJournal(File filesDir) {
+		journalFile = new File(filesDir, "godot_google_play_billing_journal.bin");
+		rotatedJournalFile = new File(filesDir, "godot_google_play_billing_journal.1.bin");
+		allocate(DEFAULT_CAPACITY);
+	}
+
+	// Clears the journal.
+	public synchronized void setCapacity(int capacity) {
+		allocate(Math.max(1, capacity));
+	}
+
+	public void setFileEnabled(boolean fileEnabled) {
+		this.fileEnabled = fileEnabled;
+	}
+
+	public synchronized void record(int event, int operation, int requestId, int code, String detail) {
+		int index = (int)(recordedCount % timesMillis.length);
+		timesMillis[index] = System.currentTimeMillis();
+		events[index] = (byte)event;
+		operations[index] = (byte)operation;
+		requestIds[index] = requestId;
+		codes[index] = code;
+		details[index] = detail;
+		recordedCount++;
+	}
+
+	public synchronized void clear() {
+		allocate(timesMillis.length);
+	}
+
+	// Oldest event first.
+	public synchronized Object[] toDictionaryArray() {
+		long first = Math.max(0, recordedCount - timesMillis.length);
+		Object[] allDictionaries = new Object[(int)(recordedCount - first)];
+
+		for (long i = first; i < recordedCount; i++) {
+			int index = (int)(i % timesMillis.length);
+			Dictionary dictionary = new Dictionary();
+			dictionary.put("time_ms", timesMillis[index]); // long
+			dictionary.put("event", EVENT_NAMES[events[index]]); // String
+			dictionary.put("operation", BillingMetrics.getOperationName(operations[index])); // String
+			dictionary.put("request_id", requestIds[index]); // int
+			dictionary.put("code", codes[index]); // int
+			dictionary.put("detail", details[index]); // String
+			allDictionaries[(int)(i - first)] = dictionary;
+		}
+
+		return allDictionaries;
+	}
+
+	private synchronized ExecutorService getIoExecutor() {
+		if (ioExecutor == null) {
+			ioExecutor = Executors.newSingleThreadExecutor();
+		}
+		return ioExecutor;
+	}
+
+	// Appends the events recorded since the last flush to the journal file, if enabled.
+	public void flush() {
+		if (!fileEnabled) return;
+
+		final long[] flushedTimesMillis;
+		final byte[] flushedEvents;
+		final byte[] flushedOperations;
+		final int[] flushedRequestIds;
+		final int[] flushedCodes;
+		final String[] flushedDetails;
+
+		synchronized (this) {
+			long first = Math.max(flushedCount, recordedCount - timesMillis.length);
+			int count = (int)(recordedCount - first);
+			if (count == 0) return;
+
+			flushedTimesMillis = new long[count];
+			flushedEvents = new byte[count];
+			flushedOperations = new byte[count];
+			flushedRequestIds = new int[count];
+			flushedCodes = new int[count];
+			flushedDetails = new String[count];
+
+			for (int i = 0; i < count; i++) {
+				int index = (int)((first + i) % timesMillis.length);
+				flushedTimesMillis[i] = timesMillis[index];
+				flushedEvents[i] = events[index];
+				flushedOperations[i] = operations[index];
+				flushedRequestIds[i] = requestIds[index];
+				flushedCodes[i] = codes[index];
+				flushedDetails[i] = details[index];
+			}
+			flushedCount = recordedCount;
+		}
+
+		getIoExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				// Files written by another version are rotated out rather than appended to.
+				boolean rotate = journalFile.length() > MAX_FILE_BYTES || (journalFile.exists() && !hasCurrentVersion(journalFile));
+				if (rotate && !journalFile.renameTo(rotatedJournalFile)) {
+					System.out.println("BillingJournal>failed to rotate " + journalFile);
+				}
+
+				boolean newFile = !journalFile.exists();
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)))) {
+					if (newFile) {
+						out.writeInt(FILE_MAGIC);
+						out.writeByte(FILE_VERSION);
+					}
+					for (int i = 0; i < flushedTimesMillis.length; i++) {
+						out.writeLong(flushedTimesMillis[i]);
+						out.writeByte(flushedEvents[i]);
+						out.writeByte(flushedOperations[i]);
+						out.writeInt(flushedRequestIds[i]);
+						out.writeInt(flushedCodes[i]);
+						// writeUTF is limited to 64 KB, which a debug message isn't guaranteed to fit in.
+						byte[] detail = flushedDetails[i] == null ? new byte[0] : flushedDetails[i].getBytes(UTF_8);
+						out.writeInt(detail.length);
+						out.write(detail);
+					}
+				} catch (IOException e) {
+					System.out.println("BillingJournal>failed to write journal file: " + e);
+				}
+			}
+		});
+	}
+
+	private static boolean hasCurrentVersion(File file) {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readInt() == FILE_MAGIC && in.readUnsignedByte() == FILE_VERSION;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// Purchase tokens grant access to the purchase, so the journal, which may be written
+	// to a plaintext file, only keeps the first 12 hex digits of their SHA-256. Enough to
+	// match events of the same purchase, not to use it.
+	public static String hashPurchaseToken(String purchaseToken) {
+		if (purchaseToken == null) return null;
+
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(purchaseToken.getBytes(UTF_8));
+			StringBuilder builder = new StringBuilder("token:");
+			for (int i = 0; i < 6; i++) {
+				builder.append(String.format("%02x", digest[i]));
+			}
+			return builder.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return "token:?";
+		}
+	}
+
+	private void allocate(int capacity) {
+		timesMillis = new long[capacity];
+		events = new byte[capacity];
+		operations = new byte[capacity];
+		requestIds = new int[capacity];
+		codes = new int[capacity];
+		details = new String[capacity];
+		recordedCount = 0;
+		flushedCount = 0;
+	}
+}
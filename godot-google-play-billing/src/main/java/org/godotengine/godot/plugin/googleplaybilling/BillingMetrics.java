@@ -0,0 +1,148 @@
+/*************************************************************************/
+/*  BillingMetrics.java                                                  */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import org.godotengine.godot.Dictionary;
+import org.godotengine.godot.plugin.googleplaybilling.utils.LatencyHistogram;
+
+import com.android.billingclient.api.BillingResult;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and response code counts for every BillingClient operation,
+ * plus connection and queue statistics. Memory use is fixed once constructed.
+ */
+public class BillingMetrics {
+	public static final int START_CONNECTION = 0;
+	public static final int QUERY_PRODUCT_DETAILS = 1;
+	public static final int QUERY_PURCHASES = 2;
+	public static final int LAUNCH_BILLING_FLOW = 3;
+	public static final int ACKNOWLEDGE_PURCHASE = 4;
+	public static final int CONSUME = 5;
+
+	private static final String[] OPERATION_NAMES = {
+		"start_connection",
+		"query_product_details",
+		"query_purchases",
+		"launch_billing_flow",
+		"acknowledge_purchase",
+		"consume",
+	};
+
+	// BillingResponseCode ranges from SERVICE_TIMEOUT (-3) to NETWORK_ERROR (12).
+	private static final int MIN_RESPONSE_CODE = -3;
+	private static final int MAX_RESPONSE_CODE = 12;
+	private static final int RESPONSE_CODE_SLOTS = MAX_RESPONSE_CODE - MIN_RESPONSE_CODE + 2; // last slot: unknown codes
+
+	private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATION_NAMES.length];
+	private final AtomicLongArray responseCodeCounts = new AtomicLongArray(OPERATION_NAMES.length * RESPONSE_CODE_SLOTS);
+	private final AtomicLong reconnectCount = new AtomicLong();
+	private final AtomicLong disconnectCount = new AtomicLong();
+	private volatile int queuedRequests;
+	private volatile int maxQueuedRequests;
+
+	public BillingMetrics() {
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	public static String getOperationName(int operation) {
+		return operation >= 0 && operation < OPERATION_NAMES.length ? OPERATION_NAMES[operation] : null;
+	}
+
+	public static long start() {
+		return System.nanoTime();
+	}
+
+	public void record(int operation, long startNanos, BillingResult billingResult) {
+		latencies[operation].record((System.nanoTime() - startNanos) / 1000L);
+
+		int responseCode = billingResult.getResponseCode();
+		int slot = responseCode < MIN_RESPONSE_CODE || responseCode > MAX_RESPONSE_CODE ? RESPONSE_CODE_SLOTS - 1 : responseCode - MIN_RESPONSE_CODE;
+		responseCodeCounts.incrementAndGet(operation * RESPONSE_CODE_SLOTS + slot);
+	}
+
+	public void recordReconnect() {
+		reconnectCount.incrementAndGet();
+	}
+
+	public void recordDisconnect() {
+		disconnectCount.incrementAndGet();
+	}
+
+	public void recordQueuedRequests(int count) {
+		queuedRequests = count;
+		if (count > maxQueuedRequests) {
+			maxQueuedRequests = count;
+		}
+	}
+
+	public void reset() {
+		for (LatencyHistogram latency : latencies) {
+			latency.reset();
+		}
+		for (int i = 0; i < responseCodeCounts.length(); i++) {
+			responseCodeCounts.set(i, 0);
+		}
+		reconnectCount.set(0);
+		disconnectCount.set(0);
+		maxQueuedRequests = queuedRequests;
+	}
+
+	public Dictionary toDictionary() {
+		Dictionary operations = new Dictionary();
+		for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+			Dictionary dictionary = latencies[operation].toDictionary();
+
+			Dictionary responseCodes = new Dictionary();
+			for (int slot = 0; slot < RESPONSE_CODE_SLOTS; slot++) {
+				long count = responseCodeCounts.get(operation * RESPONSE_CODE_SLOTS + slot);
+				if (count == 0) continue;
+				String code = slot == RESPONSE_CODE_SLOTS - 1 ? "other" : String.valueOf(slot + MIN_RESPONSE_CODE);
+				responseCodes.put(code, count);
+			}
+			dictionary.put("response_codes", responseCodes); // Dictionary of response code -> count
+
+			operations.put(OPERATION_NAMES[operation], dictionary);
+		}
+
+		Dictionary dictionary = new Dictionary();
+		dictionary.put("operations", operations); // Dictionary of operation -> Dictionary
+		dictionary.put("reconnects", reconnectCount.get()); // long
+		dictionary.put("disconnects", disconnectCount.get()); // long
+		dictionary.put("queued_requests", queuedRequests); // int
+		dictionary.put("max_queued_requests", maxQueuedRequests); // int
+		return dictionary;
+	}
+}
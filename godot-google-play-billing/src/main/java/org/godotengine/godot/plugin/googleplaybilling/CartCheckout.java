@@ -0,0 +1,147 @@
+/*************************************************************************/
+/*  CartCheckout.java                                                    */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import org.godotengine.godot.Dictionary;
+import org.godotengine.godot.plugin.googleplaybilling.utils.ConcurrentStore;
+
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.ProductDetails;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Validates a cart of one-time products against the queried product details in a
+ * single pass. Repeated product IDs are folded into quantities, and every problem
+ * is reported per item instead of stopping at the first one.
+ */
+public class CartCheckout {
+	public static final String ERROR_EMPTY_CART = "empty_cart";
+	public static final String ERROR_UNKNOWN_PRODUCT = "unknown_product";
+	public static final String ERROR_NO_ONE_TIME_OFFER = "no_one_time_offer";
+	public static final String ERROR_MIXED_PRODUCT_TYPES = "mixed_product_types";
+
+	private final LinkedHashMap<String, Integer> quantities = new LinkedHashMap<>();
+	private final List<ProductDetails> allProductDetails = new ArrayList<>();
+	private final List<Dictionary> errors = new ArrayList<>();
+	private String productType;
+
+	private CartCheckout() {
+	}
+
+	public static CartCheckout validate(String[] allProductIds, ConcurrentStore<ProductDetails> productDetailsByProductId) {
+		CartCheckout cart = new CartCheckout();
+		if (allProductIds == null || allProductIds.length == 0) {
+			cart.addError(-1, null, ERROR_EMPTY_CART, "The cart has no products");
+			return cart;
+		}
+
+		for (int i = 0; i < allProductIds.length; i++) {
+			String productId = allProductIds[i];
+			if (productId == null) {
+				cart.addError(i, null, ERROR_UNKNOWN_PRODUCT, "Product id is null");
+				continue;
+			}
+
+			Integer quantity = cart.quantities.get(productId);
+			if (quantity != null) {
+				cart.quantities.put(productId, quantity + 1);
+				continue;
+			}
+			cart.quantities.put(productId, 1);
+
+			ProductDetails productDetails = productDetailsByProductId.get(productId);
+			if (productDetails == null) {
+				cart.addError(i, productId, ERROR_UNKNOWN_PRODUCT, "Either products haven't been queried or no matching productId could be found");
+				continue;
+			}
+			if (productDetails.getOneTimePurchaseOfferDetails() == null) {
+				cart.addError(i, productId, ERROR_NO_ONE_TIME_OFFER, "Product has no one-time purchase offer");
+				continue;
+			}
+			if (cart.productType == null) {
+				cart.productType = productDetails.getProductType();
+			} else if (!cart.productType.equals(productDetails.getProductType())) {
+				cart.addError(i, productId, ERROR_MIXED_PRODUCT_TYPES, "Product type " + productDetails.getProductType() + " differs from " + cart.productType);
+				continue;
+			}
+
+			cart.allProductDetails.add(productDetails);
+		}
+		return cart;
+	}
+
+	public boolean isValid() {
+		return errors.isEmpty();
+	}
+
+	// inapp or subs, null when no product in the cart is known.
+	public String getProductType() {
+		return productType;
+	}
+
+	public List<String> getProductIds() {
+		return new ArrayList<>(quantities.keySet());
+	}
+
+	public List<BillingFlowParams.ProductDetailsParams> createProductDetailsParams() {
+		List<BillingFlowParams.ProductDetailsParams> allProductDetailsParams = new ArrayList<>(allProductDetails.size());
+		for (ProductDetails productDetails : allProductDetails) {
+			allProductDetailsParams.add(BillingFlowParams.ProductDetailsParams.newBuilder()
+					.setProductDetails(productDetails)
+					.build());
+		}
+		return allProductDetailsParams;
+	}
+
+	// Adds the per-item errors and the requested quantities to a result dictionary.
+	public void putInto(Dictionary dictionary) {
+		Dictionary quantityDictionary = new Dictionary();
+		for (Map.Entry<String, Integer> entry : quantities.entrySet()) {
+			quantityDictionary.put(entry.getKey(), entry.getValue());
+		}
+		dictionary.put("quantities", quantityDictionary); // Dictionary of product id -> int
+		dictionary.put("errors", errors.toArray()); // Array of Dictionary
+	}
+
+	private void addError(int index, String productId, String error, String debugMessage) {
+		Dictionary dictionary = new Dictionary();
+		dictionary.put("index", index); // int
+		dictionary.put("product_id", productId); // String
+		dictionary.put("error", error); // String
+		dictionary.put("debug_message", debugMessage); // String
+		errors.add(dictionary);
+	}
+}
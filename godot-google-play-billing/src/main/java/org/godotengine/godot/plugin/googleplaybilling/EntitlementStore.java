@@ -0,0 +1,421 @@
+/*************************************************************************/
+/*  EntitlementStore.java                                                */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+
+import com.android.billingclient.api.Purchase;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Persists the purchases that grant an entitlement, encrypted with a key held in the
+ * Android Keystore, so they can be checked at startup before Play is reachable.
+ * Purchases are only stored once their signature has been verified on a worker
+ * pool, and the stored set is reconciled with every successful purchases query.
+ */
+public class EntitlementStore {
+	private static final int FILE_MAGIC = 0x47504553; // "GPES"
+	private static final int FILE_VERSION = 1;
+	private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
+	private static final String KEY_ALIAS = "godot_google_play_billing_entitlements";
+	private static final String CIPHER_TRANSFORMATION = "AES/GCM/NoPadding";
+	private static final int GCM_TAG_BITS = 128;
+	private static final int VERIFIER_THREADS = 2;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static class Entry {
+		final String productType;
+		final Purchase purchase;
+
+		Entry(String productType, Purchase purchase) {
+			this.productType = productType;
+			this.purchase = purchase;
+		}
+	}
+
+	private final File storeFile;
+	// Batches are applied in order on a single thread, while their signatures are
+	// verified in parallel on the verifier pool. Both are created on first use.
+	private ExecutorService applyExecutor;
+	private ExecutorService verifierExecutor;
+	// Only touched on applyExecutor.
+	private final LinkedHashMap<String, Entry> entriesByPurchaseToken = new LinkedHashMap<>();
+	private volatile PublicKey publicKey;
+	private volatile Set<String> entitledProductIds = Collections.emptySet();
+	private volatile boolean loaded;
+
+	public EntitlementStore(File filesDir) {
+		storeFile = new File(filesDir, "godot_google_play_billing_entitlements.bin");
+	}
+
+	// Reads the store file on a background thread. Until onLoaded runs, on that thread,
+	// hasEntitlement returns false for everything.
+	public void preload(final Runnable onLoaded) {
+		getApplyExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				load();
+				publish();
+				loaded = true;
+				onLoaded.run();
+			}
+		});
+	}
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	// Without a public key, purchases are stored as reported by Play. Setting a key
+	// re-verifies everything already stored.
+	public void setPublicKey(String base64PublicKey) throws GeneralSecurityException {
+		if (base64PublicKey == null || base64PublicKey.isEmpty()) {
+			publicKey = null;
+			return;
+		}
+
+		byte[] encodedKey = Base64.decode(base64PublicKey, Base64.DEFAULT);
+		publicKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encodedKey));
+
+		getApplyExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				List<Entry> entries = new ArrayList<>(entriesByPurchaseToken.values());
+				entriesByPurchaseToken.clear();
+				for (Entry entry : verify(entries)) {
+					entriesByPurchaseToken.put(entry.purchase.getPurchaseToken(), entry);
+				}
+				publish();
+				save();
+			}
+		});
+	}
+
+	// Never blocks and doesn't allocate, so it can be called every frame.
+	public boolean hasEntitlement(String productId) {
+		return entitledProductIds.contains(productId);
+	}
+
+	public Object[] getEntitledProductIds() {
+		return entitledProductIds.toArray();
+	}
+
+	// Adds or updates purchases reported outside of a full query, e.g. by onPurchasesUpdated.
+	public void update(final String productType, List<Purchase> purchases) {
+		if (purchases == null || purchases.isEmpty()) return;
+
+		final List<Entry> entries = toEntries(productType, purchases);
+		getApplyExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				for (Entry entry : verify(entries)) {
+					entriesByPurchaseToken.put(entry.purchase.getPurchaseToken(), entry);
+				}
+				publish();
+				save();
+			}
+		});
+	}
+
+	// Replaces every stored purchase of productType with the result of a successful query.
+	public void reconcile(final String productType, List<Purchase> purchases) {
+		final List<Entry> entries = toEntries(productType, purchases);
+		getApplyExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				List<Entry> verifiedEntries = verify(entries);
+
+				Iterator<Entry> iterator = entriesByPurchaseToken.values().iterator();
+				while (iterator.hasNext()) {
+					if (productType.equals(iterator.next().productType)) {
+						iterator.remove();
+					}
+				}
+				for (Entry entry : verifiedEntries) {
+					entriesByPurchaseToken.put(entry.purchase.getPurchaseToken(), entry);
+				}
+				publish();
+				save();
+			}
+		});
+	}
+
+	public void remove(final String purchaseToken) {
+		getApplyExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				if (entriesByPurchaseToken.remove(purchaseToken) == null) return;
+				publish();
+				save();
+			}
+		});
+	}
+
+	public void clear() {
+		getApplyExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				entriesByPurchaseToken.clear();
+				publish();
+				if (storeFile.exists() && !storeFile.delete()) {
+					System.out.println("EntitlementStore>could not delete " + storeFile);
+				}
+			}
+		});
+	}
+
+	private synchronized ExecutorService getApplyExecutor() {
+		if (applyExecutor == null) {
+			applyExecutor = Executors.newSingleThreadExecutor();
+		}
+		return applyExecutor;
+	}
+
+	// Only called on applyExecutor, and only once a public key is set.
+	private ExecutorService getVerifierExecutor() {
+		if (verifierExecutor == null) {
+			verifierExecutor = Executors.newFixedThreadPool(VERIFIER_THREADS);
+		}
+		return verifierExecutor;
+	}
+
+	private static List<Entry> toEntries(String productType, List<Purchase> purchases) {
+		List<Entry> entries = new ArrayList<>();
+		if (purchases == null) return entries;
+
+		for (Purchase purchase : purchases) {
+			if (purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED) {
+				entries.add(new Entry(productType, purchase));
+			}
+		}
+		return entries;
+	}
+
+	private List<Entry> verify(List<Entry> entries) {
+		final PublicKey key = publicKey;
+		if (key == null || entries.isEmpty()) return entries;
+
+		List<Future<Boolean>> results = new ArrayList<>();
+		for (final Entry entry : entries) {
+			results.add(getVerifierExecutor().submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return verifySignature(key, entry.purchase);
+				}
+			}));
+		}
+
+		List<Entry> verifiedEntries = new ArrayList<>();
+		for (int i = 0; i < entries.size(); i++) {
+			try {
+				if (results.get(i).get()) {
+					verifiedEntries.add(entries.get(i));
+				} else {
+					System.out.println("EntitlementStore>ignoring purchase with invalid signature: " + entries.get(i).purchase.getOrderId());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return verifiedEntries;
+			} catch (ExecutionException e) {
+				System.out.println("EntitlementStore>failed to verify purchase: " + e.getCause());
+			}
+		}
+		return verifiedEntries;
+	}
+
+	private static boolean verifySignature(PublicKey key, Purchase purchase) {
+		try {
+			Signature signature = Signature.getInstance("SHA1withRSA");
+			signature.initVerify(key);
+			signature.update(purchase.getOriginalJson().getBytes(UTF_8));
+			return signature.verify(Base64.decode(purchase.getSignature(), Base64.DEFAULT));
+		} catch (GeneralSecurityException | IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	private void publish() {
+		Set<String> productIds = new HashSet<>();
+		for (Entry entry : entriesByPurchaseToken.values()) {
+			productIds.addAll(entry.purchase.getProducts());
+		}
+		entitledProductIds = Collections.unmodifiableSet(productIds);
+	}
+
+	private void load() {
+		if (!storeFile.exists()) return;
+
+		try {
+			byte[] data = readFile(storeFile);
+			DataInputStream header = new DataInputStream(new ByteArrayInputStream(data));
+			if (header.readInt() != FILE_MAGIC || header.readInt() != FILE_VERSION) {
+				System.out.println("EntitlementStore>ignoring store file with unknown format");
+				return;
+			}
+
+			byte[] iv = new byte[header.readInt()];
+			header.readFully(iv);
+			byte[] encrypted = new byte[header.available()];
+			header.readFully(encrypted);
+
+			Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+			cipher.init(Cipher.DECRYPT_MODE, getSecretKey(), new GCMParameterSpec(GCM_TAG_BITS, iv));
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(cipher.doFinal(encrypted)));
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String productType = in.readUTF();
+				String originalJson = readString(in);
+				String signature = readString(in);
+				Purchase purchase = new Purchase(originalJson, signature);
+				entriesByPurchaseToken.put(purchase.getPurchaseToken(), new Entry(productType, purchase));
+			}
+		} catch (IOException | GeneralSecurityException | JSONException | RuntimeException e) {
+			System.out.println("EntitlementStore>failed to read store file: " + e);
+			entriesByPurchaseToken.clear();
+		}
+	}
+
+	private void save() {
+		File tempFile = new File(storeFile.getPath() + ".tmp");
+
+		try {
+			ByteArrayOutputStream plain = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(plain);
+			out.writeInt(entriesByPurchaseToken.size());
+			for (Entry entry : entriesByPurchaseToken.values()) {
+				out.writeUTF(entry.productType);
+				writeString(out, entry.purchase.getOriginalJson());
+				writeString(out, entry.purchase.getSignature());
+			}
+			out.flush();
+
+			Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+			cipher.init(Cipher.ENCRYPT_MODE, getSecretKey());
+			byte[] iv = cipher.getIV();
+			byte[] encrypted = cipher.doFinal(plain.toByteArray());
+
+			try (DataOutputStream file = new DataOutputStream(new FileOutputStream(tempFile))) {
+				file.writeInt(FILE_MAGIC);
+				file.writeInt(FILE_VERSION);
+				file.writeInt(iv.length);
+				file.write(iv);
+				file.write(encrypted);
+			}
+		} catch (IOException | GeneralSecurityException e) {
+			System.out.println("EntitlementStore>failed to write store file: " + e);
+			tempFile.delete();
+			return;
+		}
+
+		if (!tempFile.renameTo(storeFile)) {
+			System.out.println("EntitlementStore>failed to replace " + storeFile);
+			tempFile.delete();
+		}
+	}
+
+	private static Key getSecretKey() throws GeneralSecurityException, IOException {
+		KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+		keyStore.load(null);
+
+		Key key = keyStore.getKey(KEY_ALIAS, null);
+		if (key != null) return key;
+
+		KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE_PROVIDER);
+		keyGenerator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+				.setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+				.setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+				.setKeySize(256)
+				.build());
+		return keyGenerator.generateKey();
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		try (FileInputStream in = new FileInputStream(file)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	// writeUTF is limited to 64 KB, which a purchase's JSON isn't guaranteed to fit in.
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF_8);
+	}
+}
@@ -31,101 +31,264 @@
 package org.godotengine.godot.plugin.googleplaybilling;
 
 import android.app.Activity;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 
 import org.godotengine.godot.Dictionary;
 import org.godotengine.godot.Godot;
 import org.godotengine.godot.plugin.GodotPlugin;
 import org.godotengine.godot.plugin.SignalInfo;
+import org.godotengine.godot.plugin.googleplaybilling.backend.BillingBackend;
+import org.godotengine.godot.plugin.googleplaybilling.backend.LazyBillingBackend;
+import org.godotengine.godot.plugin.googleplaybilling.backend.PlayBillingBackend;
+import org.godotengine.godot.plugin.googleplaybilling.utils.CompactProductDetailsEncoder;
+import org.godotengine.godot.plugin.googleplaybilling.utils.ConcurrentStore;
+import org.godotengine.godot.plugin.googleplaybilling.utils.FieldProjection;
 import org.godotengine.godot.plugin.googleplaybilling.utils.GooglePlayBillingUtils;
+import org.godotengine.godot.plugin.googleplaybilling.utils.PurchaseDiffer;
+import org.godotengine.godot.plugin.googleplaybilling.utils.PurchaseIndex;
+import org.godotengine.godot.plugin.googleplaybilling.utils.SubscriptionOfferIndex;
+import org.godotengine.godot.plugin.googleplaybilling.utils.TimerWheel;
 import org.godotengine.godot.plugin.UsedByGodot;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.collection.ArraySet;
 
-import com.android.billingclient.api.AcknowledgePurchaseParams;
 import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
 import com.android.billingclient.api.BillingClient;
 import com.android.billingclient.api.BillingClientStateListener;
 import com.android.billingclient.api.BillingFlowParams;
 import com.android.billingclient.api.BillingResult;
-import com.android.billingclient.api.ConsumeParams;
 import com.android.billingclient.api.ConsumeResponseListener;
-import com.android.billingclient.api.PendingPurchasesParams;
 import com.android.billingclient.api.ProductDetails;
 import com.android.billingclient.api.ProductDetailsResponseListener;
 import com.android.billingclient.api.Purchase;
 import com.android.billingclient.api.PurchasesResponseListener;
 import com.android.billingclient.api.PurchasesUpdatedListener;
-import com.android.billingclient.api.QueryProductDetailsParams;
-import com.android.billingclient.api.QueryPurchasesParams;
 import com.android.billingclient.api.SkuDetails;
 import com.android.billingclient.api.SkuDetailsParams;
 import com.android.billingclient.api.SkuDetailsResponseListener;
 
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GodotGooglePlayBilling extends GodotPlugin {
 
-	private final BillingClient billingClient;
-	private final HashMap<String, ProductDetails> productDetailsCache = new HashMap<>(); // sku → SkuDetails
+	private final BillingBackend billingBackend;
+	private final LazyBillingBackend lazyBillingBackend;
+	private long constructorMicros;
+	private long billingClientInitMicros;
+	private final BillingConnectionManager connectionManager;
+	private final ProductDetailsQueryCoalescer productDetailsQueryCoalescer;
+	private final ProductDetailsCache productDetailsCache;
+	private final BillingJournal billingJournal;
+	private final EntitlementStore entitlementStore;
+	private boolean storesPreloaded;
+	private final PurchaseCompletionEngine purchaseCompletionEngine;
+	private final SignalDispatcher signalDispatcher;
 	private String obfuscatedAccountId;
 	private String obfuscatedProfileId;
 	private boolean isPurchasePersonalized;
 	private final Activity mainActivity;
-	private boolean billingClientAvailable;
-	private final HashMap<String, ProductDetails> queriedProductDetailsByProductId = new HashMap<>();
-	private final HashMap<String, Purchase> queriedPurchasesByPurchaseToken = new HashMap<>();
+	private volatile boolean billingClientAvailable;
+	private final TimerWheel watchdog = new TimerWheel();
+	private volatile long billingCallTimeoutMillis = DEFAULT_BILLING_CALL_TIMEOUT_MILLIS;
+	private volatile boolean retryTimedOutQueries;
+	private final PendingRequestTracker pendingRequestTracker = new PendingRequestTracker();
+	private final ConcurrentStore<ProductDetails> queriedProductDetailsByProductId = new ConcurrentStore<>();
+	// The product type of every product launched or returned by a purchases query, since
+	// onPurchasesUpdated doesn't say whether a purchase is a subscription.
+	private final ConcurrentHashMap<String, String> purchasedProductTypesByProductId = new ConcurrentHashMap<>();
+	private final SubscriptionOfferIndex subscriptionOfferIndex = new SubscriptionOfferIndex();
+	private final PreparedPurchaseCache preparedPurchaseCache = new PreparedPurchaseCache();
+	private final PurchaseIndex queriedPurchasesByPurchaseToken = new PurchaseIndex();
+	private final FieldProjection signalFieldProjection = new FieldProjection();
+	private final PurchaseDiffer purchaseDiffer = new PurchaseDiffer();
+	private final BillingMetrics billingMetrics = new BillingMetrics();
+	private final Handler metricsHandler = new Handler(Looper.getMainLooper());
+	private volatile long billingMetricsIntervalMillis;
+	private final PendingPurchaseTracker pendingPurchaseTracker = new PendingPurchaseTracker();
+	private final Handler pendingPurchaseHandler = new Handler(Looper.getMainLooper());
+	private long pendingPurchaseRefreshDelayMillis = INITIAL_PENDING_PURCHASE_REFRESH_DELAY_MILLIS;
+	private final Map<String, String> prefetchProductTypesByProductId = new LinkedHashMap<>();
+	private volatile boolean prefetchPurchases;
+	private volatile boolean compactProductDetails;
+
+	private static final long DEFAULT_BILLING_CALL_TIMEOUT_MILLIS = 20 * 1000;
+	// Set on the <application> element of the game's AndroidManifest.xml.
+	private static final String META_DATA_LAZY_INIT = "org.godotengine.plugin.googleplaybilling.lazy_init";
+	private static final String META_DATA_LAZY_INIT_DELAY_MS = "org.godotengine.plugin.googleplaybilling.lazy_init_delay_ms";
+	private static final int DEFAULT_LAZY_INIT_DELAY_MILLIS = 5000;
+	private static final int MAX_TIMED_OUT_QUERY_RETRIES = 1;
+	private static final long INITIAL_PENDING_PURCHASE_REFRESH_DELAY_MILLIS = 5 * 1000;
+	private static final long MAX_PENDING_PURCHASE_REFRESH_DELAY_MILLIS = 5 * 60 * 1000;
 
 	private final String BILLING_SERVICE_DISCONNECTED = "billing_service_disconnected";
 	private final String BILLING_SETUP_FINISHED = "billing_setup_finished";
 	private final String PRODUCT_DETAILS_QUERY_COMPLETED = "product_details_query_completed";
+	private final String PRODUCT_DETAILS_QUERY_COMPLETED_COMPACT = "product_details_query_completed_compact";
 	private final String QUERY_PURCHASES_RESPONSE = "query_purchases_response";
+	private final String QUERY_ALL_PURCHASES_RESPONSE = "query_all_purchases_response";
 	private final String PURCHASES_UPDATED = "purchases_updated";
+	private final String PURCHASES_CHANGED = "purchases_changed";
 	private final String ACKNOWLEDGE_PURCHASE_RESPONSE = "acknowledge_purchase_response";
 	private final String CONSUME_RESPONSE = "consume_response";
+	private final String PURCHASES_COMPLETED = "purchases_completed";
 	private final String BILLING_RESUMED = "billing_resumed";
+	private final String BILLING_METRICS = "billing_metrics";
+	private final String PENDING_PURCHASE_RESOLVED = "pending_purchase_resolved";
+	private final String ENTITLEMENTS_READY = "entitlements_ready";
 
 
 	public GodotGooglePlayBilling(Godot godot) {
+		this(godot, PlayBillingBackend.FACTORY);
+	}
+
+	// Lets tests and load tests run the plugin against a backend other than Google Play.
+	public GodotGooglePlayBilling(Godot godot, BillingBackend.Factory billingBackendFactory) {
 		super(godot);
+		long startNanos = BillingMetrics.start();
 		mainActivity = godot.getActivity();
 
 		if (mainActivity == null) {
 			System.out.println("Godot Activity is null");
-			billingClient = null;
+			billingBackend = null;
+			lazyBillingBackend = null;
+			connectionManager = null;
+			productDetailsQueryCoalescer = null;
+			productDetailsCache = null;
+			billingJournal = null;
+			entitlementStore = null;
+			signalDispatcher = null;
+			purchaseCompletionEngine = null;
 			return;
 		}
 
-		PendingPurchasesParams pendingPurchasesParams = 
-			PendingPurchasesParams.newBuilder().enableOneTimeProducts().build();
+		billingJournal = new BillingJournal(mainActivity.getFilesDir());
 
-		billingClient = BillingClient.newBuilder(mainActivity)
-				.enablePendingPurchases(pendingPurchasesParams)
-				.setListener(purchasesUpdatedListener)
-				.build();
+		signalDispatcher = new SignalDispatcher(signalEmitter, new SignalDispatcher.FieldSelector() {
+			@Override
+			public Set<String> getFields(String signal) {
+				return signalFieldProjection.getFields(signal);
+			}
+		});
+		signalDispatcher.setCoalescing(PURCHASES_UPDATED, true);
+
+		purchaseCompletionEngine = new PurchaseCompletionEngine(purchaseCompletionExecutor, purchaseCompletionListener);
+
+		// Their files are read on startConnection, or on first use if that comes earlier.
+		productDetailsCache = new ProductDetailsCache(mainActivity.getFilesDir());
+		entitlementStore = new EntitlementStore(mainActivity.getFilesDir());
+
+		Bundle metaData = getApplicationMetaData();
+		if (metaData != null && metaData.getBoolean(META_DATA_LAZY_INIT, false)) {
+			lazyBillingBackend = new LazyBillingBackend(billingBackendFactory, mainActivity, purchasesUpdatedListener,
+					metaData.getInt(META_DATA_LAZY_INIT_DELAY_MS, DEFAULT_LAZY_INIT_DELAY_MILLIS));
+			billingBackend = lazyBillingBackend;
+		} else {
+			lazyBillingBackend = null;
+			long billingClientStartNanos = BillingMetrics.start();
+			billingBackend = billingBackendFactory.create(mainActivity, purchasesUpdatedListener);
+			billingClientInitMicros = (System.nanoTime() - billingClientStartNanos) / 1000L;
+		}
+		connectionManager = new BillingConnectionManager(billingBackend, billingClientStateListener, billingMetrics);
+		productDetailsQueryCoalescer = new ProductDetailsQueryCoalescer(productDetailsQueryExecutor);
 
 		billingClientAvailable = false;
 		isPurchasePersonalized = false;
 		obfuscatedAccountId = "";
 		obfuscatedProfileId = "";
+		constructorMicros = (System.nanoTime() - startNanos) / 1000L;
+	}
+
+	@Nullable
+	private Bundle getApplicationMetaData() {
+		try {
+			return mainActivity.getPackageManager().getApplicationInfo(mainActivity.getPackageName(), PackageManager.GET_META_DATA).metaData;
+		} catch (PackageManager.NameNotFoundException e) {
+			log("getApplicationMetaData>" + e.getMessage());
+			return null;
+		}
+	}
+
+	// With lazy_init enabled the BillingClient is created on the first billing call,
+	// after lazy_init_delay_ms (-1: never) or when this is called, e.g. on opening the shop.
+	// billing_setup_finished is emitted only once it has been created and connected.
+	@UsedByGodot
+	public void initializeBillingClient() {
+		if (lazyBillingBackend != null) {
+			lazyBillingBackend.initialize(LazyBillingBackend.TRIGGER_FIRST_USE);
+		}
+	}
+	@UsedByGodot
+	public Dictionary getStartupMetrics() {
+		Dictionary dictionary = new Dictionary();
+		dictionary.put("constructor_micros", constructorMicros); // long
+		dictionary.put("lazy_init", lazyBillingBackend != null); // boolean
+		if (lazyBillingBackend != null) {
+			dictionary.put("billing_client_initialized", lazyBillingBackend.isInitialized()); // boolean
+			dictionary.put("billing_client_init_trigger", lazyBillingBackend.getInitTrigger()); // String
+			dictionary.put("billing_client_init_delay_micros", lazyBillingBackend.getInitDelayMicros()); // long
+			dictionary.put("billing_client_init_micros", lazyBillingBackend.getInitDurationMicros()); // long
+		} else {
+			dictionary.put("billing_client_init_micros", billingClientInitMicros); // long
+		}
+		return dictionary;
+	}
+
+	// Plugin construction starts no threads: the cache and entitlement files are read,
+	// each on its own thread, once the plugin is first used.
+	private synchronized void preloadStores() {
+		if (storesPreloaded) return;
+		storesPreloaded = true;
+
+		productDetailsCache.preload();
+		entitlementStore.preload(new Runnable() {
+			@Override
+			public void run() {
+				signalDispatcher.emit(ENTITLEMENTS_READY);
+			}
+		});
+	}
+
+	private ProductDetailsCache getProductDetailsCache() {
+		preloadStores();
+		return productDetailsCache;
+	}
+
+	private EntitlementStore getEntitlementStore() {
+		preloadStores();
+		return entitlementStore;
 	}
 
 	@UsedByGodot
 	public void startConnection() {
-		billingClient.startConnection(billingClientStateListener);
+		preloadStores();
+		connectionManager.startConnection();
 	}
 	@UsedByGodot
 	public void endConnection() {
-		billingClient.endConnection();
+		connectionManager.endConnection();
+	}
+	@UsedByGodot
+	public void setAutoReconnect(boolean autoReconnect) {
+		connectionManager.setAutoReconnect(autoReconnect);
 	}
 	@UsedByGodot
 	public boolean isReady() {
-		return billingClient.isReady();
+		return billingBackend.isReady();
 	}
 	@UsedByGodot
 	public boolean getBillingClientAvailable() {
@@ -133,7 +296,7 @@ public class GodotGooglePlayBilling extends GodotPlugin {
 	}
 	@UsedByGodot
 	public int getConnectionState() {
-		return billingClient.getConnectionState();
+		return billingBackend.getConnectionState();
 	}
 
 	private final BillingClientStateListener billingClientStateListener = new BillingClientStateListener() {
@@ -141,45 +304,288 @@ public class GodotGooglePlayBilling extends GodotPlugin {
 		@Override
 		public void onBillingServiceDisconnected() {
 			billingClientAvailable = false;
-			emitSignal(BILLING_SERVICE_DISCONNECTED);
+			billingJournal.record(BillingJournal.EVENT_DISCONNECTED, BillingJournal.NO_OPERATION, PendingRequestTracker.NO_REQUEST_ID, 0, null);
+			signalDispatcher.emit(BILLING_SERVICE_DISCONNECTED);
 		}
 		@Override
 		public void onBillingSetupFinished(BillingResult billingResult) {
+			billingJournal.record(BillingJournal.EVENT_SETUP_FINISHED, BillingMetrics.START_CONNECTION, PendingRequestTracker.NO_REQUEST_ID, billingResult.getResponseCode(), billingResult.getDebugMessage());
 			if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
 				billingClientAvailable = true;
 			} else {
 				billingClientAvailable = false;
 			}
 
-			emitSignal(BILLING_SETUP_FINISHED, GooglePlayBillingUtils.convertFromBillingResult(billingResult));
+			signalDispatcher.emit(BILLING_SETUP_FINISHED, GooglePlayBillingUtils.convertFromBillingResult(billingResult));
+
+			if (billingClientAvailable) {
+				prefetch();
+			}
 		}
 	};
 	@UsedByGodot
-	public void queryPurchases(String productType) {
+	public int queryPurchases(final String productType) {
+		final int requestId = beginRequest("queryPurchases");
+
 		// inapp or subs
-		QueryPurchasesParams queryPurchasesParams =
-				QueryPurchasesParams.newBuilder()
-						.setProductType(productType)
-						.build();
+		queryPurchasesAsync(productType, requestId, new PurchasesResponseListener() {
+			public void onQueryPurchasesResponse(BillingResult billingResult, List<Purchase> purchases) {
+				pendingRequestTracker.finish(requestId);
+				GooglePlayBillingUtils.addPurchasesByPurchaseToken(purchases, queriedPurchasesByPurchaseToken);
+				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+					emitPurchasesChanged(purchaseDiffer.diffQuery(productType, purchases));
+					trackPendingPurchases(productType, purchases, true);
+					reconcileEntitlements(productType, purchases);
+					purchaseCompletionEngine.process(purchases);
+				}
+				signalDispatcher.emitPurchases(QUERY_PURCHASES_RESPONSE, billingResult, purchases, requestId);
+			}
+		});
+		return requestId;
+	}
 
-		billingClient.queryPurchasesAsync(queryPurchasesParams,
-				new PurchasesResponseListener() {
-					public void onQueryPurchasesResponse(BillingResult billingResult, List<Purchase> purchases) {
-						GooglePlayBillingUtils.addPurchasesByPurchaseToken(purchases, queriedPurchasesByPurchaseToken);
-						emitSignal(QUERY_PURCHASES_RESPONSE, GooglePlayBillingUtils.convertFromBillingResult(billingResult), (Object)GooglePlayBillingUtils.convertFromPurchaseArr(purchases));
+	// Queries in-app products and subscriptions at the same time, and emits a single
+	// query_all_purchases_response with the result of each product type and all purchases.
+	@UsedByGodot
+	public int queryAllPurchases() {
+		final int requestId = beginRequest("queryAllPurchases");
+
+		queryAllPurchasesAsync(requestId, new AllPurchasesResponseListener() {
+			@Override
+			public void onAllPurchasesResponse(final String[] productTypes, final BillingResult[] billingResults, final List<List<Purchase>> purchasesByProductType) {
+				pendingRequestTracker.finish(requestId);
+				signalDispatcher.execute(new Runnable() {
+					@Override
+					public void run() {
+						Dictionary billingResultsByProductType = new Dictionary();
+						List<Purchase> allPurchases = new ArrayList<>();
+						for (int i = 0; i < productTypes.length; i++) {
+							billingResultsByProductType.put(productTypes[i], GooglePlayBillingUtils.convertFromBillingResult(billingResults[i], requestId));
+							allPurchases.addAll(purchasesByProductType.get(i));
+						}
+
+						Object[] purchases = GooglePlayBillingUtils.convertFromPurchaseArr(allPurchases, signalFieldProjection.getFields(QUERY_PURCHASES_RESPONSE));
+						signalEmitter.emit(QUERY_ALL_PURCHASES_RESPONSE, new Object[] { billingResultsByProductType, purchases });
 					}
 				});
+			}
+		});
+		return requestId;
 	}
 
-	private List<QueryProductDetailsParams.Product> buildProductList(List<String> productIds, @BillingClient.ProductType String productType) {
-		List<QueryProductDetailsParams.Product> productList = new ArrayList<>();
-		for (String productId : productIds) {
-			productList.add(QueryProductDetailsParams.Product.newBuilder()
-					.setProductId(productId)
-					.setProductType(productType)
-					.build());
+	// Queries every purchase like queryAllPurchases, but only emits purchases_changed with
+	// the purchases that differ from the last known state. Intended for billing_resumed.
+	@UsedByGodot
+	public int refreshPurchases() {
+		final int requestId = beginRequest("refreshPurchases");
+
+		queryAllPurchasesAsync(requestId, new AllPurchasesResponseListener() {
+			@Override
+			public void onAllPurchasesResponse(String[] productTypes, BillingResult[] billingResults, List<List<Purchase>> purchasesByProductType) {
+				pendingRequestTracker.finish(requestId);
+			}
+		});
+		return requestId;
+	}
+
+	private interface AllPurchasesResponseListener {
+		void onAllPurchasesResponse(String[] productTypes, BillingResult[] billingResults, List<List<Purchase>> purchasesByProductType);
+	}
+
+	private void queryAllPurchasesAsync(int requestId, final AllPurchasesResponseListener listener) {
+		final String[] productTypes = { BillingClient.ProductType.INAPP, BillingClient.ProductType.SUBS };
+		final BillingResult[] billingResults = new BillingResult[productTypes.length];
+		final List<List<Purchase>> purchasesByProductType = new ArrayList<>();
+		final AtomicInteger pendingQueries = new AtomicInteger(productTypes.length);
+
+		for (int i = 0; i < productTypes.length; i++) {
+			purchasesByProductType.add(new ArrayList<Purchase>());
 		}
-		return productList;
+
+		for (int i = 0; i < productTypes.length; i++) {
+			final int index = i;
+			queryPurchasesAsync(productTypes[i], requestId, new PurchasesResponseListener() {
+				public void onQueryPurchasesResponse(BillingResult billingResult, List<Purchase> purchases) {
+					GooglePlayBillingUtils.addPurchasesByPurchaseToken(purchases, queriedPurchasesByPurchaseToken);
+
+					synchronized (purchasesByProductType) {
+						billingResults[index] = billingResult;
+						if (purchases != null) {
+							purchasesByProductType.get(index).addAll(purchases);
+						}
+					}
+
+					if (pendingQueries.decrementAndGet() != 0) return;
+
+					HashMap<String, List<Purchase>> succeededPurchasesByProductType = new HashMap<>();
+					for (int i = 0; i < productTypes.length; i++) {
+						if (billingResults[i].getResponseCode() == BillingClient.BillingResponseCode.OK) {
+							succeededPurchasesByProductType.put(productTypes[i], purchasesByProductType.get(i));
+							trackPendingPurchases(productTypes[i], purchasesByProductType.get(i), true);
+							reconcileEntitlements(productTypes[i], purchasesByProductType.get(i));
+							purchaseCompletionEngine.process(purchasesByProductType.get(i));
+						}
+					}
+
+					if (succeededPurchasesByProductType.size() == productTypes.length) {
+						emitPurchasesChanged(purchaseDiffer.diffAll(succeededPurchasesByProductType));
+					} else {
+						for (Map.Entry<String, List<Purchase>> entry : succeededPurchasesByProductType.entrySet()) {
+							emitPurchasesChanged(purchaseDiffer.diffQuery(entry.getKey(), entry.getValue()));
+						}
+					}
+
+					if (listener != null) {
+						listener.onAllPurchasesResponse(productTypes, billingResults, purchasesByProductType);
+					}
+				}
+			});
+		}
+	}
+
+	// Product ids and the hashed purchase token, never the token itself.
+	private static String getJournalDetail(Purchase purchase) {
+		return purchase.getProducts() + " " + BillingJournal.hashPurchaseToken(purchase.getPurchaseToken());
+	}
+
+	private void emitPurchasesChanged(final PurchaseDiffer.Diff diff) {
+		if (diff.isEmpty()) return;
+
+		for (Purchase purchase : diff.added) {
+			billingJournal.record(BillingJournal.EVENT_PURCHASE, BillingJournal.NO_OPERATION, PendingRequestTracker.NO_REQUEST_ID, purchase.getPurchaseState(), getJournalDetail(purchase));
+		}
+		for (Purchase purchase : diff.changed) {
+			billingJournal.record(BillingJournal.EVENT_PURCHASE, BillingJournal.NO_OPERATION, PendingRequestTracker.NO_REQUEST_ID, purchase.getPurchaseState(), getJournalDetail(purchase));
+		}
+		for (String purchaseToken : diff.removedPurchaseTokens) {
+			billingJournal.record(BillingJournal.EVENT_PURCHASE_REMOVED, BillingJournal.NO_OPERATION, PendingRequestTracker.NO_REQUEST_ID, 0, BillingJournal.hashPurchaseToken(purchaseToken));
+		}
+
+		signalDispatcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				Set<String> fields = signalFieldProjection.getFields(PURCHASES_CHANGED);
+				signalEmitter.emit(PURCHASES_CHANGED, new Object[] {
+						GooglePlayBillingUtils.convertFromPurchaseArr(diff.added, fields),
+						GooglePlayBillingUtils.convertFromPurchaseArr(diff.changed, fields),
+						diff.removedPurchaseTokens.toArray()
+				});
+			}
+		});
+	}
+
+	private void queryPurchasesAsync(final String productType, int requestId, final PurchasesResponseListener purchasesResponseListener) {
+		queryPurchasesAsync(productType, requestId, purchasesResponseListener, 0);
+	}
+
+	// The purchase tokens of pending purchases and pending subscription updates that
+	// pending_purchase_resolved will be emitted for.
+	@UsedByGodot
+	public String[] getPendingPurchaseTokens() {
+		return pendingPurchaseTracker.getPendingPurchaseTokens();
+	}
+
+	private void trackPendingPurchases(String productType, List<Purchase> purchases, boolean complete) {
+		PendingPurchaseTracker.Result result = pendingPurchaseTracker.observe(productType, purchases, complete);
+
+		int purchasedCount = 0;
+		for (final PendingPurchaseTracker.Transition transition : result.transitions) {
+			if (PendingPurchaseTracker.RESOLVED_PURCHASED.equals(transition.result)) {
+				purchasedCount++;
+			}
+			signalDispatcher.execute(new Runnable() {
+				@Override
+				public void run() {
+					Dictionary purchase = transition.purchase != null ? GooglePlayBillingUtils.convertFromPurchase(transition.purchase) : new Dictionary();
+					signalEmitter.emit(PENDING_PURCHASE_RESOLVED, new Object[] { transition.purchaseToken, transition.result, purchase });
+				}
+			});
+		}
+
+		// Purchase tokens are credentials, so only counts are logged.
+		if (!result.transitions.isEmpty() || result.added > 0) {
+			log("trackPendingPurchases>" + result.added + " newly pending, " + purchasedCount + " purchased, "
+					+ (result.transitions.size() - purchasedCount) + " canceled");
+		}
+
+		schedulePendingPurchaseRefresh(!result.transitions.isEmpty() || result.added > 0);
+	}
+
+	// Re-queries only while something is pending. The delay doubles with every refresh
+	// that resolves nothing, and starts over once something is added or resolved.
+	private void schedulePendingPurchaseRefresh(boolean resetDelay) {
+		synchronized (pendingPurchaseRefreshRunnable) {
+			pendingPurchaseHandler.removeCallbacks(pendingPurchaseRefreshRunnable);
+			if (resetDelay || pendingPurchaseTracker.isEmpty()) {
+				pendingPurchaseRefreshDelayMillis = INITIAL_PENDING_PURCHASE_REFRESH_DELAY_MILLIS;
+			}
+			if (!pendingPurchaseTracker.isEmpty()) {
+				pendingPurchaseHandler.postDelayed(pendingPurchaseRefreshRunnable, pendingPurchaseRefreshDelayMillis);
+			}
+		}
+	}
+
+	private final Runnable pendingPurchaseRefreshRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (this) {
+				pendingPurchaseRefreshDelayMillis = Math.min(pendingPurchaseRefreshDelayMillis * 2, MAX_PENDING_PURCHASE_REFRESH_DELAY_MILLIS);
+			}
+			refreshPendingPurchases();
+		}
+	};
+
+	private void refreshPendingPurchases() {
+		for (final String productType : pendingPurchaseTracker.getPendingProductTypes()) {
+			queryPurchasesAsync(productType, PendingRequestTracker.NO_REQUEST_ID, new PurchasesResponseListener() {
+				@Override
+				public void onQueryPurchasesResponse(BillingResult billingResult, List<Purchase> purchases) {
+					if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+						schedulePendingPurchaseRefresh(false);
+						return;
+					}
+
+					GooglePlayBillingUtils.addPurchasesByPurchaseToken(purchases, queriedPurchasesByPurchaseToken);
+					emitPurchasesChanged(purchaseDiffer.diffQuery(productType, purchases));
+					trackPendingPurchases(productType, purchases, true);
+					reconcileEntitlements(productType, purchases);
+					purchaseCompletionEngine.process(purchases);
+				}
+			});
+		}
+	}
+
+	private void queryPurchasesAsync(final String productType, final int requestId, final PurchasesResponseListener purchasesResponseListener, final int attempt) {
+		connectionManager.execute(new BillingConnectionManager.Request() {
+			@Override
+			public void run() {
+				final long startNanos = BillingMetrics.start();
+				final TimerWheel.Timeout timeout = watchBillingCall(new Runnable() {
+					@Override
+					public void run() {
+						BillingResult billingResult = billingCallTimeoutResult("queryPurchases", requestId);
+						recordBillingCall(BillingMetrics.QUERY_PURCHASES, requestId, startNanos, billingResult);
+						if (retryTimedOutQueries && attempt < MAX_TIMED_OUT_QUERY_RETRIES) {
+							queryPurchasesAsync(productType, requestId, purchasesResponseListener, attempt + 1);
+						} else {
+							purchasesResponseListener.onQueryPurchasesResponse(billingResult, new ArrayList<Purchase>());
+						}
+					}
+				});
+				billingBackend.queryPurchases(productType, new PurchasesResponseListener() {
+					@Override
+					public void onQueryPurchasesResponse(BillingResult billingResult, List<Purchase> purchases) {
+						if (!completeBillingCall(timeout)) return;
+						recordBillingCall(BillingMetrics.QUERY_PURCHASES, requestId, startNanos, billingResult);
+						purchasesResponseListener.onQueryPurchasesResponse(billingResult, purchases);
+					}
+				});
+			}
+			@Override
+			public void fail(BillingResult billingResult) {
+				purchasesResponseListener.onQueryPurchasesResponse(billingResult, new ArrayList<Purchase>());
+			}
+		});
 	}
 
 	@UsedByGodot
@@ -190,166 +596,807 @@ public class GodotGooglePlayBilling extends GodotPlugin {
 	public void setObfuscatedProfileId(String profileId) {
 		obfuscatedProfileId = profileId;
 	}
+	// Marks the price in the next purchase flows as personalized, as required for EU
+	// consumer disclosures; passed to the billing flow as setIsOfferPersonalized.
+	@UsedByGodot
+	public void setPurchasePersonalized(boolean isPersonalized) {
+		isPurchasePersonalized = isPersonalized;
+	}
 
 	@Override
 	public void onMainResume() {
 		if (billingClientAvailable) {
-			emitSignal(BILLING_RESUMED);
+			signalDispatcher.emit(BILLING_RESUMED);
+
+			// The player may be coming back from paying for a pending purchase.
+			if (!pendingPurchaseTracker.isEmpty()) {
+				synchronized (pendingPurchaseRefreshRunnable) {
+					pendingPurchaseHandler.removeCallbacks(pendingPurchaseRefreshRunnable);
+					pendingPurchaseRefreshDelayMillis = INITIAL_PENDING_PURCHASE_REFRESH_DELAY_MILLIS;
+				}
+				refreshPendingPurchases();
+			}
+		}
+	}
+
+	@Override
+	public void onMainPause() {
+		if (billingJournal != null) {
+			billingJournal.flush();
+		}
+	}
+
+	@Override
+	public void onMainDestroy() {
+		metricsHandler.removeCallbacks(billingMetricsRunnable);
+		pendingPurchaseHandler.removeCallbacks(pendingPurchaseRefreshRunnable);
+		if (billingJournal != null) {
+			billingJournal.flush();
+		}
+		if (signalDispatcher != null) {
+			signalDispatcher.shutdown();
 		}
 	}
 
 	@UsedByGodot
-	public void queryProductDetails(String[] allProductIds, String[] allProductTypes) {
-		List<QueryProductDetailsParams.Product> productList = new ArrayList<>();
+	public int queryProductDetails(String[] allProductIds, String[] allProductTypes) {
+		final int requestId = beginRequest("queryProductDetails");
+		final List<String> productIds = new ArrayList<>();
+		List<String> productTypes = new ArrayList<>();
 
 		for (int i = 0; i < allProductIds.length; i++) {
 			if (i >= allProductTypes.length) {
-				System.out.printf("queryProductDetails>i: %s exceeded productTypes count%n", i);
+				log("queryProductDetails>i: " + i + " exceeded productTypes count");
 				continue;
 			}
 
-			String productId = allProductIds[i];
-			String productType = allProductTypes[i];
+			productIds.add(allProductIds[i]);
+			productTypes.add(allProductTypes[i]);
+		}
+
+		productDetailsQueryCoalescer.queryProductDetails(productIds, productTypes, new ProductDetailsResponseListener() {
+			public void onProductDetailsResponse(final BillingResult billingResult, final List<ProductDetails> productDetailsList) {
+				recordResponse(BillingMetrics.QUERY_PRODUCT_DETAILS, requestId, billingResult);
+				pendingRequestTracker.finish(requestId);
+				signalDispatcher.execute(new Runnable() {
+					@Override
+					public void run() {
+						boolean succeeded = billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && productDetailsList != null;
+
+						// The cache always holds the complete dictionaries, whatever is emitted, and
+						// drops the queried products Play no longer returns.
+						if (compactProductDetails) {
+							// Encoded straight from the product details; the cache converts them on its own thread.
+							if (succeeded) {
+								getProductDetailsCache().putProductDetails(productIds, productDetailsList);
+							}
+							signalEmitter.emit(PRODUCT_DETAILS_QUERY_COMPLETED_COMPACT, new Object[] { GooglePlayBillingUtils.convertFromBillingResult(billingResult, requestId), CompactProductDetailsEncoder.encode(productDetailsList) });
+						} else {
+							Object[] allProductDetails = GooglePlayBillingUtils.convertFromProductDetailsArr(productDetailsList, null);
+							if (succeeded) {
+								getProductDetailsCache().put(productIds, allProductDetails);
+							}
+							Set<String> fields = signalFieldProjection.getFields(PRODUCT_DETAILS_QUERY_COMPLETED);
+							signalEmitter.emit(PRODUCT_DETAILS_QUERY_COMPLETED, new Object[] { GooglePlayBillingUtils.convertFromBillingResult(billingResult, requestId), FieldProjection.project(allProductDetails, fields) });
+						}
+					}
+				});
+			}
+		});
+		return requestId;
+	}
 
-			QueryProductDetailsParams.Product newProduct =
-					QueryProductDetailsParams.Product.newBuilder()
-							.setProductId(productId)
-							.setProductType(productType)
-							.build();
-			productList.add(newProduct);
+	private final ProductDetailsQueryCoalescer.QueryExecutor productDetailsQueryExecutor = new ProductDetailsQueryCoalescer.QueryExecutor() {
+		@Override
+		public void queryProductDetails(String productType, List<String> productIds, ProductDetailsResponseListener listener) {
+			queryProductDetailsAsync(productType, productIds, listener, 0);
 		}
+	};
 
-		QueryProductDetailsParams queryProductDetailsParams =
-				QueryProductDetailsParams.newBuilder()
-						.setProductList(productList)
-						.build();
+	private void queryProductDetailsAsync(final String productType, final List<String> productIds, final ProductDetailsResponseListener listener, final int attempt) {
+		final ProductDetailsResponseListener productDetailsResponseListener = new ProductDetailsResponseListener() {
+			public void onProductDetailsResponse(BillingResult billingResult, List<ProductDetails> productDetailsList) {
+				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && productDetailsList != null) {
+					GooglePlayBillingUtils.addProductDetailsByProductId(productDetailsList, queriedProductDetailsByProductId);
+					subscriptionOfferIndex.update(productDetailsList);
+					preparedPurchaseCache.onProductDetailsUpdated(productDetailsList);
+				}
 
-		billingClient.queryProductDetailsAsync(
-				queryProductDetailsParams,
-				new ProductDetailsResponseListener() {
-					public void onProductDetailsResponse(BillingResult billingResult, List<ProductDetails> productDetailsList) {
-						if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && productDetailsList != null) {
-							GooglePlayBillingUtils.addProductDetailsByProductId(productDetailsList, queriedProductDetailsByProductId);
-						}
+				listener.onProductDetailsResponse(billingResult, productDetailsList);
+			}
+		};
 
-						emitSignal(PRODUCT_DETAILS_QUERY_COMPLETED, GooglePlayBillingUtils.convertFromBillingResult(billingResult), (Object)GooglePlayBillingUtils.convertFromProductDetailsArr(productDetailsList));
+		connectionManager.execute(new BillingConnectionManager.Request() {
+			@Override
+			public void run() {
+				final long startNanos = BillingMetrics.start();
+				final TimerWheel.Timeout timeout = watchBillingCall(new Runnable() {
+					@Override
+					public void run() {
+						BillingResult billingResult = billingCallTimeoutResult("queryProductDetails", PendingRequestTracker.NO_REQUEST_ID);
+						billingMetrics.record(BillingMetrics.QUERY_PRODUCT_DETAILS, startNanos, billingResult);
+						if (retryTimedOutQueries && attempt < MAX_TIMED_OUT_QUERY_RETRIES) {
+							queryProductDetailsAsync(productType, productIds, listener, attempt + 1);
+						} else {
+							productDetailsResponseListener.onProductDetailsResponse(billingResult, null);
+						}
 					}
+				});
+				billingBackend.queryProductDetails(productType, productIds, new ProductDetailsResponseListener() {
+					@Override
+					public void onProductDetailsResponse(BillingResult billingResult, List<ProductDetails> productDetailsList) {
+						if (!completeBillingCall(timeout)) return;
+						billingMetrics.record(BillingMetrics.QUERY_PRODUCT_DETAILS, startNanos, billingResult);
+						productDetailsResponseListener.onProductDetailsResponse(billingResult, productDetailsList);
+					}
+				});
+			}
+			@Override
+			public void fail(BillingResult billingResult) {
+				productDetailsResponseListener.onProductDetailsResponse(billingResult, null);
+			}
+		});
+	}
+
+	// Deadline of every billing library call. A call that hasn't called back in time is
+	// answered with SERVICE_TIMEOUT, and its late callback is ignored. 0 disables it.
+	@UsedByGodot
+	public void setBillingCallTimeout(int seconds) {
+		billingCallTimeoutMillis = Math.max(0, seconds) * 1000L;
+	}
+	// Re-issues a timed out product details or purchases query once before failing it.
+	@UsedByGodot
+	public void setRetryTimedOutQueries(boolean enabled) {
+		retryTimedOutQueries = enabled;
+	}
+
+	private int beginRequest(String operation) {
+		initializeBillingClient();
+		int requestId = pendingRequestTracker.begin(operation);
+		billingJournal.record(BillingJournal.EVENT_REQUEST, BillingJournal.NO_OPERATION, requestId, 0, operation);
+		return requestId;
+	}
+
+	// requestId is NO_REQUEST_ID for calls the plugin makes on its own.
+	private void recordBillingCall(int operation, int requestId, long startNanos, BillingResult billingResult) {
+		billingMetrics.record(operation, startNanos, billingResult);
+		recordResponse(operation, requestId, billingResult);
+	}
+
+	private void recordResponse(int operation, int requestId, BillingResult billingResult) {
+		billingJournal.record(BillingJournal.EVENT_RESPONSE, operation, requestId, billingResult.getResponseCode(), billingResult.getDebugMessage());
+	}
+
+	// Keeps the message in the billing journal, see getBillingJournal and flushBillingJournal.
+	private void log(String message) {
+		billingJournal.record(BillingJournal.EVENT_MESSAGE, BillingJournal.NO_OPERATION, PendingRequestTracker.NO_REQUEST_ID, 0, message);
+	}
+
+	private TimerWheel.Timeout watchBillingCall(Runnable onTimeout) {
+		long timeoutMillis = billingCallTimeoutMillis;
+		return timeoutMillis > 0 ? watchdog.schedule(onTimeout, timeoutMillis) : null;
+	}
+
+	// Returns false when the watchdog already answered the call.
+	private boolean completeBillingCall(TimerWheel.Timeout timeout) {
+		return timeout == null || watchdog.cancel(timeout);
+	}
+
+	private BillingResult billingCallTimeoutResult(String operation, int requestId) {
+		billingJournal.record(BillingJournal.EVENT_REQUEST_TIMED_OUT, BillingJournal.NO_OPERATION, requestId, BillingClient.BillingResponseCode.SERVICE_TIMEOUT, operation);
+		return BillingResult.newBuilder()
+				.setResponseCode(BillingClient.BillingResponseCode.SERVICE_TIMEOUT)
+				.setDebugMessage(operation + " did not respond in time")
+				.build();
+	}
+
+	// Returns the product details from the last successful queries, as emitted with
+	// product_details_query_completed. Available before the billing client is connected,
+	// once isProductDetailsCacheLoaded returns true; empty while the cache is still loading.
+	@UsedByGodot
+	public Object[] getCachedProductDetails() {
+		return getProductDetailsCache().getProductDetails();
+	}
+	@UsedByGodot
+	public boolean isProductDetailsCacheLoaded() {
+		return getProductDetailsCache().isLoaded();
+	}
+	@UsedByGodot
+	public void setProductDetailsCacheTtl(int seconds) {
+		getProductDetailsCache().setTtlMillis(seconds * 1000L);
+	}
+	@UsedByGodot
+	public void clearProductDetailsCache() {
+		getProductDetailsCache().clear();
+	}
+
+	// Restricts the dictionary keys carried by product_details_query_completed, query_purchases_response,
+	// purchases_updated or purchases_changed. Pass an empty array to restore every key. The identifying keys
+	// (product_id and product_type, or purchase_token) are always kept so the remaining fields can be
+	// fetched on demand.
+	@UsedByGodot
+	public void setSignalFields(String signal, String[] fields) {
+		switch (signal) {
+			case PRODUCT_DETAILS_QUERY_COMPLETED:
+				signalFieldProjection.setFields(signal, fields, Arrays.asList("product_id", "product_type"));
+				break;
+			case QUERY_PURCHASES_RESPONSE:
+			case PURCHASES_UPDATED:
+			case PURCHASES_CHANGED:
+				signalFieldProjection.setFields(signal, fields, Arrays.asList("purchase_token"));
+				break;
+			default:
+				log("setSignalFields>signal " + signal + " does not support field selection");
+				break;
+		}
+	}
+	// Merges purchases_updated (enabled by default) or query_purchases_response signals emitted
+	// within one frame into a single signal carrying at most the max batch size of purchases.
+	// A merged response lists the IDs of every request it answers in request_ids.
+	@UsedByGodot
+	public void setSignalCoalescing(String signal, boolean enabled) {
+		if (!signal.equals(PURCHASES_UPDATED) && !signal.equals(QUERY_PURCHASES_RESPONSE)) {
+			log("setSignalCoalescing>signal " + signal + " does not support coalescing");
+			return;
+		}
+		signalDispatcher.setCoalescing(signal, enabled);
+	}
+	@UsedByGodot
+	public void setMaxSignalBatchSize(int maxBatchSize) {
+		signalDispatcher.setMaxBatchSize(maxBatchSize);
+	}
+	// Emits product_details_query_completed_compact with a single PoolByteArray instead of
+	// product_details_query_completed. Decode it with google_play_billing_compact.gd.
+	@UsedByGodot
+	public void setCompactProductDetails(boolean enabled) {
+		compactProductDetails = enabled;
+	}
+	// Every queried product details, in the compact encoding.
+	@UsedByGodot
+	public byte[] getCompactProductDetails() {
+		return CompactProductDetailsEncoder.encode(queriedProductDetailsByProductId.snapshot());
+	}
+	@UsedByGodot
+	public Dictionary getProductDetails(String productId) {
+		ProductDetails productDetails = queriedProductDetailsByProductId.get(productId);
+		if (productDetails == null) {
+			return new Dictionary();
+		}
+		return GooglePlayBillingUtils.convertFromProductDetails(productDetails);
+	}
+	@UsedByGodot
+	public Object[] getSubscriptionOfferDetails(String productId) {
+		ProductDetails productDetails = queriedProductDetailsByProductId.get(productId);
+		if (productDetails == null) {
+			return new Object[] {  };
+		}
+		return GooglePlayBillingUtils.convertFromSubscriptionOfferDetailsArr(productDetails.getSubscriptionOfferDetails());
+	}
+	@UsedByGodot
+	public Dictionary getPurchase(String purchaseToken) {
+		Purchase purchase = queriedPurchasesByPurchaseToken.get(purchaseToken);
+		if (purchase == null) {
+			return new Dictionary();
+		}
+		return GooglePlayBillingUtils.convertFromPurchase(purchase);
+	}
+	@UsedByGodot
+	public String getPurchaseOriginalJson(String purchaseToken) {
+		Purchase purchase = queriedPurchasesByPurchaseToken.get(purchaseToken);
+		return purchase == null ? "" : purchase.getOriginalJson();
+	}
+	@UsedByGodot
+	public String getPurchaseSignature(String purchaseToken) {
+		Purchase purchase = queriedPurchasesByPurchaseToken.get(purchaseToken);
+		return purchase == null ? "" : purchase.getSignature();
+	}
+
+	// Products to query as soon as every billing setup succeeds, so the catalog is ready
+	// before the game asks for it. Results are emitted with product_details_query_completed.
+	@UsedByGodot
+	public void setPrefetchProducts(String[] allProductIds, String[] allProductTypes) {
+		synchronized (prefetchProductTypesByProductId) {
+			prefetchProductTypesByProductId.clear();
+			for (int i = 0; i < allProductIds.length; i++) {
+				if (i >= allProductTypes.length) {
+					log("setPrefetchProducts>i: " + i + " exceeded productTypes count");
+					continue;
 				}
-		);
+
+				prefetchProductTypesByProductId.put(allProductIds[i], allProductTypes[i]);
+			}
+		}
+	}
+	// Refreshes purchases on every successful setup, like refreshPurchases.
+	@UsedByGodot
+	public void setPrefetchPurchases(boolean enabled) {
+		prefetchPurchases = enabled;
+	}
+
+	// Checks the locally stored entitlements, which are kept in sync with Play by every
+	// successful purchases query. They are read from disk in the background on startConnection:
+	// until isEntitlementsLoaded returns true, or entitlements_ready has been emitted,
+	// this returns false for every product.
+	@UsedByGodot
+	public boolean hasEntitlement(String productId) {
+		return getEntitlementStore().hasEntitlement(productId);
+	}
+	// entitlements_ready can be emitted before the script connects to it, so check this first.
+	@UsedByGodot
+	public boolean isEntitlementsLoaded() {
+		return getEntitlementStore().isLoaded();
+	}
+	@UsedByGodot
+	public Object[] getEntitlements() {
+		return getEntitlementStore().getEntitledProductIds();
+	}
+	// The base64 encoded RSA public key from the Play Console. Once set, only purchases
+	// with a valid signature are stored as entitlements.
+	@UsedByGodot
+	public boolean setEntitlementPublicKey(String base64PublicKey) {
+		try {
+			getEntitlementStore().setPublicKey(base64PublicKey);
+			return true;
+		} catch (GeneralSecurityException | IllegalArgumentException e) {
+			log("setEntitlementPublicKey>invalid public key: " + e);
+			return false;
+		}
+	}
+	@UsedByGodot
+	public void clearEntitlements() {
+		getEntitlementStore().clear();
 	}
 
+	private void reconcileEntitlements(String productType, List<Purchase> purchases) {
+		recordProductTypes(productType, purchases);
+		getEntitlementStore().reconcile(productType, purchases);
+	}
+
+	private void recordProductTypes(String productType, List<Purchase> purchases) {
+		if (purchases == null) return;
+
+		for (Purchase purchase : purchases) {
+			recordProductTypes(productType, purchase.getProducts());
+		}
+	}
+
+	private void recordProductTypes(String productType, Collection<String> productIds) {
+		if (productType == null) return;
+
+		for (String productId : productIds) {
+			purchasedProductTypesByProductId.put(productId, productType);
+		}
+	}
+
+	private void updateEntitlements(List<Purchase> purchases) {
+		if (purchases == null) return;
+
+		// The type comes from the billing flow or query the product was last seen in.
+		// Purchases of unknown products, e.g. redeemed outside the app, are left to a
+		// full purchases query instead of being stored with a guessed type.
+		Map<String, List<Purchase>> purchasesByProductType = new HashMap<>();
+		boolean hasUnknownProductType = false;
+		for (Purchase purchase : purchases) {
+			List<String> products = purchase.getProducts();
+			String productType = products.isEmpty() ? null : purchasedProductTypesByProductId.get(products.get(0));
+			if (productType == null) {
+				hasUnknownProductType = true;
+				continue;
+			}
+
+			List<Purchase> productTypePurchases = purchasesByProductType.get(productType);
+			if (productTypePurchases == null) {
+				productTypePurchases = new ArrayList<>();
+				purchasesByProductType.put(productType, productTypePurchases);
+			}
+			productTypePurchases.add(purchase);
+		}
+
+		for (Map.Entry<String, List<Purchase>> entry : purchasesByProductType.entrySet()) {
+			getEntitlementStore().update(entry.getKey(), entry.getValue());
+		}
+
+		if (hasUnknownProductType) {
+			log("updateEntitlements>purchase of a product with unknown type, refreshing purchases");
+			queryAllPurchasesAsync(PendingRequestTracker.NO_REQUEST_ID, null);
+		}
+	}
+
+	private void prefetch() {
+		Map<String, String> productTypesByProductId = new LinkedHashMap<>();
+		synchronized (prefetchProductTypesByProductId) {
+			productTypesByProductId.putAll(prefetchProductTypesByProductId);
+		}
+
+		// Cached products past their TTL are revalidated in the same query.
+		String[][] staleProducts = getProductDetailsCache().getStaleProducts();
+		for (int i = 0; i < staleProducts[0].length; i++) {
+			if (!productTypesByProductId.containsKey(staleProducts[0][i])) {
+				productTypesByProductId.put(staleProducts[0][i], staleProducts[1][i]);
+			}
+		}
+
+		if (!productTypesByProductId.isEmpty()) {
+			queryProductDetails(productTypesByProductId.keySet().toArray(new String[0]), productTypesByProductId.values().toArray(new String[0]));
+		}
+
+		if (prefetchPurchases) {
+			queryAllPurchasesAsync(PendingRequestTracker.NO_REQUEST_ID, null);
+		}
+	}
 
 	@UsedByGodot
-	public void acknowledgePurchase(final String purchaseToken) {
-		AcknowledgePurchaseParams acknowledgePurchaseParams =
-				AcknowledgePurchaseParams.newBuilder()
-						.setPurchaseToken(purchaseToken)
-						.build();
-		billingClient.acknowledgePurchase(acknowledgePurchaseParams, new AcknowledgePurchaseResponseListener() {
+	public int acknowledgePurchase(final String purchaseToken) {
+		final int requestId = beginRequest("acknowledgePurchase");
+
+		acknowledgePurchaseAsync(purchaseToken, requestId, new AcknowledgePurchaseResponseListener() {
 			@Override
 			public void onAcknowledgePurchaseResponse(BillingResult billingResult) {
-				emitSignal(ACKNOWLEDGE_PURCHASE_RESPONSE, GooglePlayBillingUtils.convertFromBillingResult(billingResult), purchaseToken);
+				pendingRequestTracker.finish(requestId);
+				signalDispatcher.emit(ACKNOWLEDGE_PURCHASE_RESPONSE, GooglePlayBillingUtils.convertFromBillingResult(billingResult, requestId), purchaseToken);
 			}
 		});
+		return requestId;
 	}
 	@UsedByGodot
-	public void consumePurchase(String purchaseToken) {
-		ConsumeParams consumeParams = ConsumeParams.newBuilder()
-				.setPurchaseToken(purchaseToken)
-				.build();
+	public int consumePurchase(final String purchaseToken) {
+		final int requestId = beginRequest("consumePurchase");
 
-		billingClient.consumeAsync(consumeParams, new ConsumeResponseListener() {
+		consumePurchaseAsync(purchaseToken, requestId, new ConsumeResponseListener() {
 			@Override
 			public void onConsumeResponse(BillingResult billingResult, String purchaseToken) {
-				emitSignal(CONSUME_RESPONSE, GooglePlayBillingUtils.convertFromBillingResult(billingResult), purchaseToken);
+				pendingRequestTracker.finish(requestId);
+				signalDispatcher.emit(CONSUME_RESPONSE, GooglePlayBillingUtils.convertFromBillingResult(billingResult, requestId), purchaseToken);
 			}
 		});
+		return requestId;
 	}
 	@UsedByGodot
-	public Dictionary purchaseNonConsumable(String productId) {
-		if (!queriedProductDetailsByProductId.containsKey(productId)) {
-			System.out.println("purchaseNonConsumable>either purchases haven't been queried or no matching productId could be found");
-			return new Dictionary();
-		}
+	public int getPendingRequestCount() {
+		return pendingRequestTracker.getPendingCount();
+	}
 
-		ProductDetails selectedProductDetails = queriedProductDetailsByProductId.get(productId);
-		BillingResult billingResult = launchPurchaseFlowOneTimePurchase(selectedProductDetails);
-		return GooglePlayBillingUtils.convertFromBillingResult(billingResult);
+	private void acknowledgePurchaseAsync(final String purchaseToken, final int requestId, final AcknowledgePurchaseResponseListener acknowledgePurchaseResponseListener) {
+		connectionManager.execute(new BillingConnectionManager.Request() {
+			@Override
+			public void run() {
+				final long startNanos = BillingMetrics.start();
+				final TimerWheel.Timeout timeout = watchBillingCall(new Runnable() {
+					@Override
+					public void run() {
+						BillingResult billingResult = billingCallTimeoutResult("acknowledgePurchase", requestId);
+						recordBillingCall(BillingMetrics.ACKNOWLEDGE_PURCHASE, requestId, startNanos, billingResult);
+						acknowledgePurchaseResponseListener.onAcknowledgePurchaseResponse(billingResult);
+					}
+				});
+				billingBackend.acknowledgePurchase(purchaseToken, new AcknowledgePurchaseResponseListener() {
+					@Override
+					public void onAcknowledgePurchaseResponse(BillingResult billingResult) {
+						if (!completeBillingCall(timeout)) return;
+						recordBillingCall(BillingMetrics.ACKNOWLEDGE_PURCHASE, requestId, startNanos, billingResult);
+						acknowledgePurchaseResponseListener.onAcknowledgePurchaseResponse(billingResult);
+					}
+				});
+			}
+			@Override
+			public void fail(BillingResult billingResult) {
+				acknowledgePurchaseResponseListener.onAcknowledgePurchaseResponse(billingResult);
+			}
+		});
+	}
+
+	private void consumePurchaseAsync(final String purchaseToken, final int requestId, final ConsumeResponseListener listener) {
+		final ConsumeResponseListener consumeResponseListener = new ConsumeResponseListener() {
+			@Override
+			public void onConsumeResponse(BillingResult billingResult, String purchaseToken) {
+				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+					queriedPurchasesByPurchaseToken.remove(purchaseToken);
+					getEntitlementStore().remove(purchaseToken);
+				}
+				listener.onConsumeResponse(billingResult, purchaseToken);
+			}
+		};
+
+		connectionManager.execute(new BillingConnectionManager.Request() {
+			@Override
+			public void run() {
+				final long startNanos = BillingMetrics.start();
+				final TimerWheel.Timeout timeout = watchBillingCall(new Runnable() {
+					@Override
+					public void run() {
+						BillingResult billingResult = billingCallTimeoutResult("consumePurchase", requestId);
+						recordBillingCall(BillingMetrics.CONSUME, requestId, startNanos, billingResult);
+						consumeResponseListener.onConsumeResponse(billingResult, purchaseToken);
+					}
+				});
+				billingBackend.consumePurchase(purchaseToken, new ConsumeResponseListener() {
+					@Override
+					public void onConsumeResponse(BillingResult billingResult, String purchaseToken) {
+						if (!completeBillingCall(timeout)) return;
+						recordBillingCall(BillingMetrics.CONSUME, requestId, startNanos, billingResult);
+						consumeResponseListener.onConsumeResponse(billingResult, purchaseToken);
+					}
+				});
+			}
+			@Override
+			public void fail(BillingResult billingResult) {
+				consumeResponseListener.onConsumeResponse(billingResult, purchaseToken);
+			}
+		});
 	}
+
+	// Purchased products with a rule are completed by the plugin: consumables are consumed,
+	// other products acknowledged. Results are reported in batches with purchases_completed.
 	@UsedByGodot
-	public Dictionary purchaseConsumable(String[] allProductIds) {
-		List<ProductDetails> allProductDetails = new ArrayList<>();
+	public void setPurchaseCompletionRule(String productId, boolean consumable) {
+		purchaseCompletionEngine.setRule(productId, consumable);
+	}
+	@UsedByGodot
+	public void removePurchaseCompletionRule(String productId) {
+		purchaseCompletionEngine.removeRule(productId);
+	}
+	@UsedByGodot
+	public void clearPurchaseCompletionRules() {
+		purchaseCompletionEngine.clearRules();
+	}
 
-		for (int i = 0; i < allProductIds.length; i++) {
-			String foundProductId = allProductIds[i];
+	// Latency per operation in milliseconds (count, mean, p50, p90, p99, max), counts per
+	// response code, connection and request queue statistics.
+	@UsedByGodot
+	public Dictionary getBillingMetrics() {
+		return billingMetrics.toDictionary();
+	}
+	@UsedByGodot
+	public void resetBillingMetrics() {
+		billingMetrics.reset();
+	}
+	// The most recent billing events, oldest first.
+	@UsedByGodot
+	public Object[] getBillingJournal() {
+		return billingJournal.toDictionaryArray();
+	}
+	@UsedByGodot
+	public void clearBillingJournal() {
+		billingJournal.clear();
+	}
+	// Resizing clears the journal.
+	@UsedByGodot
+	public void setBillingJournalCapacity(int capacity) {
+		billingJournal.setCapacity(capacity);
+	}
+	// Appends the journal to a rotating file in the app's files directory whenever the
+	// app is paused, or when flushBillingJournal is called.
+	@UsedByGodot
+	public void setBillingJournalFileEnabled(boolean enabled) {
+		billingJournal.setFileEnabled(enabled);
+	}
+	@UsedByGodot
+	public void flushBillingJournal() {
+		billingJournal.flush();
+	}
+	// Emits billing_metrics every intervalSeconds, or stops when intervalSeconds is 0.
+	@UsedByGodot
+	public void setBillingMetricsInterval(int intervalSeconds) {
+		metricsHandler.removeCallbacks(billingMetricsRunnable);
+		billingMetricsIntervalMillis = intervalSeconds * 1000L;
+		if (billingMetricsIntervalMillis > 0) {
+			metricsHandler.postDelayed(billingMetricsRunnable, billingMetricsIntervalMillis);
+		}
+	}
 
-			if (!queriedProductDetailsByProductId.containsKey(foundProductId)) {
-				System.out.println("purchaseConsumable>either purchases haven't been queried or no matching productId could be found");
-				return new Dictionary();
+	private final Runnable billingMetricsRunnable = new Runnable() {
+		@Override
+		public void run() {
+			signalDispatcher.emit(BILLING_METRICS, billingMetrics.toDictionary());
+			if (billingMetricsIntervalMillis > 0) {
+				metricsHandler.postDelayed(this, billingMetricsIntervalMillis);
 			}
+		}
+	};
 
-			ProductDetails selectedProductDetails = queriedProductDetailsByProductId.get(foundProductId);
-			allProductDetails.add(selectedProductDetails);
+	private final PurchaseCompletionEngine.CompletionExecutor purchaseCompletionExecutor = new PurchaseCompletionEngine.CompletionExecutor() {
+		@Override
+		public void acknowledgePurchase(String purchaseToken, AcknowledgePurchaseResponseListener listener) {
+			acknowledgePurchaseAsync(purchaseToken, PendingRequestTracker.NO_REQUEST_ID, listener);
 		}
+		@Override
+		public void consumePurchase(String purchaseToken, ConsumeResponseListener listener) {
+			consumePurchaseAsync(purchaseToken, PendingRequestTracker.NO_REQUEST_ID, listener);
+		}
+	};
+
+	private final PurchaseCompletionEngine.CompletionListener purchaseCompletionListener = new PurchaseCompletionEngine.CompletionListener() {
+		@Override
+		public void onPurchasesCompleted(Object[] results) {
+			signalDispatcher.emit(PURCHASES_COMPLETED, (Object)results);
+		}
+	};
 
-		BillingResult billingResult = launchPurchaseFlowConsumablePurchase(allProductDetails);
+	// maxAgeSeconds of 0 or less keeps purchases until evicted for size.
+	@UsedByGodot
+	public void setPurchaseIndexLimits(int maxEntries, int maxAgeSeconds) {
+		queriedPurchasesByPurchaseToken.setLimits(maxEntries, maxAgeSeconds * 1000L);
+	}
+	@UsedByGodot
+	public Dictionary getPurchaseIndexStats() {
+		return queriedPurchasesByPurchaseToken.getStats();
+	}
+	@UsedByGodot
+	public Dictionary purchaseNonConsumable(String productId) {
+		PreparedPurchaseCache.PreparedPurchase preparedPurchase = getPreparedPurchase("purchaseNonConsumable", productId, null);
+		if (preparedPurchase == null) return new Dictionary();
+
+		BillingResult billingResult = launchBillingFlow(preparedPurchase.billingFlowParams, preparedPurchase.productIds, BillingClient.ProductType.INAPP);
 		return GooglePlayBillingUtils.convertFromBillingResult(billingResult);
 	}
 	@UsedByGodot
-	public Dictionary purchaseSubscription(String productId, String planId) {
-		if (!queriedProductDetailsByProductId.containsKey(productId)) {
-			System.out.println("purchaseSubscription>either purchases haven't been queried or no matching productId could be found");
-			return new Dictionary();
+	public Dictionary purchaseConsumable(String[] allProductIds) {
+		CartCheckout cart = CartCheckout.validate(allProductIds, queriedProductDetailsByProductId);
+
+		Dictionary dictionary;
+		if (cart.isValid()) {
+			BillingFlowParams billingFlowParams = CreateBillingFlow(cart.createProductDetailsParams(), null);
+			dictionary = GooglePlayBillingUtils.convertFromBillingResult(launchBillingFlow(billingFlowParams, cart.getProductIds(), cart.getProductType()));
+		} else {
+			log("purchaseConsumable>cart validation failed, see the returned errors");
+			dictionary = GooglePlayBillingUtils.convertFromBillingResult(BillingResult.newBuilder()
+					.setResponseCode(BillingClient.BillingResponseCode.DEVELOPER_ERROR)
+					.setDebugMessage("Cart validation failed")
+					.build());
 		}
+		cart.putInto(dictionary);
+		return dictionary;
+	}
+	// Same checks as purchaseConsumable without launching the billing flow, so a shop
+	// can show per-item problems before the player checks out.
+	@UsedByGodot
+	public Dictionary validateCart(String[] allProductIds) {
+		CartCheckout cart = CartCheckout.validate(allProductIds, queriedProductDetailsByProductId);
 
-		ProductDetails productDetails = queriedProductDetailsByProductId.get(productId);
-		List<ProductDetails.SubscriptionOfferDetails> subscriptionDetails = productDetails.getSubscriptionOfferDetails();
+		Dictionary dictionary = new Dictionary();
+		dictionary.put("valid", cart.isValid()); // boolean
+		cart.putInto(dictionary);
+		return dictionary;
+	}
+	@UsedByGodot
+	public Dictionary purchaseSubscription(String productId, String planId) {
+		PreparedPurchaseCache.PreparedPurchase preparedPurchase = getPreparedPurchase("purchaseSubscription", productId, planId);
+		if (preparedPurchase == null) return new Dictionary();
 
-		if (subscriptionDetails == null) {
-			System.out.println("purchaseSubscription>it appears the selected product ID is not a subscription product.");
-			return new Dictionary();
-		}
+		BillingResult billingResult = launchBillingFlow(preparedPurchase.billingFlowParams, preparedPurchase.productIds, BillingClient.ProductType.SUBS);
+		return GooglePlayBillingUtils.convertFromBillingResult(billingResult);
+	}
+	// Validates the product, resolves the offer of planId (empty for one-time products) and
+	// builds the billing flow params ahead of time, e.g. when the item scrolls into view.
+	// purchaseNonConsumable and purchaseSubscription then launch with the prepared params.
+	@UsedByGodot
+	public boolean preparePurchase(String productId, String planId) {
+		return getPreparedPurchase("preparePurchase", productId, planId == null || planId.isEmpty() ? null : planId) != null;
+	}
+	@UsedByGodot
+	public void clearPreparedPurchases() {
+		preparedPurchaseCache.clear();
+	}
 
-		ProductDetails.SubscriptionOfferDetails selectedOffer = null;
+	// planId is null for one-time products.
+	private PreparedPurchaseCache.PreparedPurchase getPreparedPurchase(String caller, String productId, String planId) {
+		String accountKey = obfuscatedAccountId + "\n" + obfuscatedProfileId + "\n" + isPurchasePersonalized;
+		PreparedPurchaseCache.PreparedPurchase preparedPurchase = preparedPurchaseCache.get(productId, planId, accountKey);
+		if (preparedPurchase != null) return preparedPurchase;
 
-		for (int i = 0; i < subscriptionDetails.size(); i++) {
-			ProductDetails.SubscriptionOfferDetails foundOffer = subscriptionDetails.get(i);
+		long catalogVersion = preparedPurchaseCache.getCatalogVersion(productId);
+		BillingFlowParams.ProductDetailsParams productDetailsParams;
 
-			if (foundOffer.getBasePlanId().equals(planId)) {
-				selectedOffer = foundOffer;
-				break;
+		if (planId == null) {
+			ProductDetails productDetails = queriedProductDetailsByProductId.get(productId);
+			if (productDetails == null) {
+				log(caller + ">either purchases haven't been queried or no matching productId could be found");
+				return null;
 			}
+
+			productDetailsParams = BillingFlowParams.ProductDetailsParams.newBuilder()
+					.setProductDetails(productDetails)
+					.build();
+		} else {
+			ProductDetails productDetails = getSubscriptionProductDetails(caller, productId);
+			if (productDetails == null) return null;
+
+			ProductDetails.SubscriptionOfferDetails selectedOffer = subscriptionOfferIndex.getOfferByBasePlanId(productId, planId);
+			if (selectedOffer == null) {
+				log(caller + ">could not find a matching subscription offer.");
+				return null;
+			}
+
+			productDetailsParams = BillingFlowParams.ProductDetailsParams.newBuilder()
+					.setProductDetails(productDetails)
+					.setOfferToken(selectedOffer.getOfferToken())
+					.build();
 		}
 
+		List<BillingFlowParams.ProductDetailsParams> allProductDetailsParams = new ArrayList<>();
+		allProductDetailsParams.add(productDetailsParams);
+
+		preparedPurchase = new PreparedPurchaseCache.PreparedPurchase(CreateBillingFlow(allProductDetailsParams, null), Arrays.asList(productId), catalogVersion, accountKey);
+		preparedPurchaseCache.put(productId, planId, preparedPurchase);
+		return preparedPurchase;
+	}
+	@UsedByGodot
+	public Dictionary purchaseSubscriptionOffer(String productId, String planId, String offerId) {
+		ProductDetails productDetails = getSubscriptionProductDetails("purchaseSubscriptionOffer", productId);
+		if (productDetails == null) return new Dictionary();
+
+		ProductDetails.SubscriptionOfferDetails selectedOffer = subscriptionOfferIndex.getOffer(productId, planId, offerId);
+		return launchSubscriptionOffer("purchaseSubscriptionOffer", productDetails, selectedOffer, null);
+	}
+	@UsedByGodot
+	public Dictionary purchaseSubscriptionByTag(String productId, String offerTag) {
+		ProductDetails productDetails = getSubscriptionProductDetails("purchaseSubscriptionByTag", productId);
+		if (productDetails == null) return new Dictionary();
+
+		ProductDetails.SubscriptionOfferDetails selectedOffer = subscriptionOfferIndex.getOfferByTag(productId, offerTag);
+		return launchSubscriptionOffer("purchaseSubscriptionByTag", productDetails, selectedOffer, null);
+	}
+	// An empty planId picks the cheapest offer across all base plans.
+	@UsedByGodot
+	public Dictionary purchaseCheapestSubscriptionOffer(String productId, String planId) {
+		ProductDetails productDetails = getSubscriptionProductDetails("purchaseCheapestSubscriptionOffer", productId);
+		if (productDetails == null) return new Dictionary();
+
+		ProductDetails.SubscriptionOfferDetails selectedOffer = subscriptionOfferIndex.getCheapestOffer(productId, planId);
+		return launchSubscriptionOffer("purchaseCheapestSubscriptionOffer", productDetails, selectedOffer, null);
+	}
+
+	private ProductDetails getSubscriptionProductDetails(String caller, String productId) {
+		ProductDetails productDetails = queriedProductDetailsByProductId.get(productId);
+		if (productDetails == null) {
+			log(caller + ">either purchases haven't been queried or no matching productId could be found");
+			return null;
+		}
+
+		if (productDetails.getSubscriptionOfferDetails() == null) {
+			log(caller + ">it appears the selected product ID is not a subscription product.");
+			return null;
+		}
+
+		return productDetails;
+	}
+
+	private Dictionary launchSubscriptionOffer(String caller, ProductDetails productDetails, ProductDetails.SubscriptionOfferDetails selectedOffer, BillingFlowParams.SubscriptionUpdateParams subscriptionUpdateParams) {
 		if (selectedOffer == null) {
-			System.out.println("purchaseSubscription>could not find the correct subscription offer with provided planId.");
+			log(caller + ">could not find a matching subscription offer.");
 			return new Dictionary();
 		}
 
-		BillingResult billingResult = launchPurchaseFlowSubscription(productDetails, selectedOffer, null);
+		BillingResult billingResult = launchPurchaseFlowSubscription(productDetails, selectedOffer, subscriptionUpdateParams);
 		return GooglePlayBillingUtils.convertFromBillingResult(billingResult);
 	}
 
+	// Signals are emitted on the Godot render thread, after conversion on the dispatcher's worker.
+	private final SignalDispatcher.Emitter signalEmitter = new SignalDispatcher.Emitter() {
+		@Override
+		public void emit(final String signal, final Object[] args) {
+			runOnRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					emitSignal(signal, args);
+				}
+			});
+		}
+	};
+
 	private final PurchasesUpdatedListener purchasesUpdatedListener = new PurchasesUpdatedListener() {
 		@Override
 		public void onPurchasesUpdated(final BillingResult billingResult, @Nullable final List<Purchase> purchases) {
 			GooglePlayBillingUtils.addPurchasesByPurchaseToken(purchases, queriedPurchasesByPurchaseToken);
-			emitSignal(PURCHASES_UPDATED, GooglePlayBillingUtils.convertFromBillingResult(billingResult), (Object)GooglePlayBillingUtils.convertFromPurchaseArr(purchases));
+			if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+				emitPurchasesChanged(purchaseDiffer.diffUpdates(purchases));
+				trackPendingPurchases(null, purchases, false);
+				updateEntitlements(purchases);
+				purchaseCompletionEngine.process(purchases);
+			}
+			signalDispatcher.emitPurchases(PURCHASES_UPDATED, billingResult, purchases);
 		}
 	};
-	private BillingResult launchPurchaseFlowOneTimePurchase(ProductDetails selectedOneTimePurchaseDetails) {
-		List<BillingFlowParams.ProductDetailsParams> allProductDetailsParams = new ArrayList<>();
-
-		BillingFlowParams.ProductDetailsParams productDetailsParams =
-				BillingFlowParams.ProductDetailsParams.newBuilder()
-						.setProductDetails(selectedOneTimePurchaseDetails)
-						.build();
-		allProductDetailsParams.add(productDetailsParams);
-
-		BillingFlowParams billingFlowParams = CreateBillingFlow(allProductDetailsParams, null);
-
-		return billingClient.launchBillingFlow(mainActivity, billingFlowParams);
-	}
 	private BillingResult launchPurchaseFlowSubscription(ProductDetails selectedSubscriptionDetails, ProductDetails.SubscriptionOfferDetails selectedSubscription, BillingFlowParams.SubscriptionUpdateParams subscriptionUpdateParams) {
 		List<BillingFlowParams.ProductDetailsParams> allProductDetailsParams = new ArrayList<>();
 
@@ -361,72 +1408,50 @@ public class GodotGooglePlayBilling extends GodotPlugin {
 		allProductDetailsParams.add(productDetailsParams);
 
 		BillingFlowParams billingFlowParams = CreateBillingFlow(allProductDetailsParams, subscriptionUpdateParams);
-		return billingClient.launchBillingFlow(mainActivity, billingFlowParams);
+		return launchBillingFlow(billingFlowParams, Arrays.asList(selectedSubscriptionDetails.getProductId()), BillingClient.ProductType.SUBS);
 	}
-	private BillingResult launchPurchaseFlowConsumablePurchase(List<ProductDetails> allSelectedConsumablePurchaseDetails) {
-		List<BillingFlowParams.ProductDetailsParams> allProductDetailsParams = new ArrayList<>();
 
-		for (int i = 0; i < allSelectedConsumablePurchaseDetails.size(); i++) {
-			ProductDetails currentProductDetails = allSelectedConsumablePurchaseDetails.get(i);
-			BillingFlowParams.ProductDetailsParams productDetailsParams =
-					BillingFlowParams.ProductDetailsParams.newBuilder()
-							.setProductDetails(currentProductDetails)
-							.build();
-			allProductDetailsParams.add(productDetailsParams);
-		}
-
-		BillingFlowParams billingFlowParams = CreateBillingFlow(allProductDetailsParams, null);
-		return billingClient.launchBillingFlow(mainActivity, billingFlowParams);
+	private BillingResult launchBillingFlow(BillingFlowParams billingFlowParams, List<String> productIds, String productType) {
+		recordProductTypes(productType, productIds);
+		initializeBillingClient();
+		long startNanos = BillingMetrics.start();
+		BillingResult billingResult = billingBackend.launchBillingFlow(mainActivity, billingFlowParams, productIds);
+		recordBillingCall(BillingMetrics.LAUNCH_BILLING_FLOW, PendingRequestTracker.NO_REQUEST_ID, startNanos, billingResult);
+		return billingResult;
 	}
 
 	@UsedByGodot
 	public Dictionary updateSubscription(String productId, String planId, String oldPurchaseToken, String externalTransactionId, int subscriptionReplacementMode) {
-		if (!queriedProductDetailsByProductId.containsKey(productId)) {
-			System.out.println("purchaseSubscription>either purchases haven't been queried or no matching productId could be found");
-			return new Dictionary();
-		}
-
-		ProductDetails productDetails = queriedProductDetailsByProductId.get(productId);
-		List<ProductDetails.SubscriptionOfferDetails> subscriptionDetails = productDetails.getSubscriptionOfferDetails();
-
-		if (subscriptionDetails == null) {
-			System.out.println("purchaseSubscription>it appears the selected product ID is not a subscription product.");
-			return new Dictionary();
-		}
-
-		ProductDetails.SubscriptionOfferDetails selectedOffer = null;
+		ProductDetails productDetails = getSubscriptionProductDetails("updateSubscription", productId);
+		if (productDetails == null) return new Dictionary();
 
-		for (int i = 0; i < subscriptionDetails.size(); i++) {
-			ProductDetails.SubscriptionOfferDetails foundOffer = subscriptionDetails.get(i);
-
-			if (foundOffer.getBasePlanId().equals(planId)) {
-				selectedOffer = foundOffer;
-				break;
-			}
-		}
-
-		if (selectedOffer == null) {
-			System.out.println("purchaseSubscription>could not find the correct subscription offer with provided planId.");
-			return new Dictionary();
-		}
+		ProductDetails.SubscriptionOfferDetails selectedOffer = subscriptionOfferIndex.getOfferByBasePlanId(productId, planId);
+		return launchSubscriptionOffer("updateSubscription", productDetails, selectedOffer,
+				createSubscriptionUpdateParams(oldPurchaseToken, externalTransactionId, subscriptionReplacementMode));
+	}
+	@UsedByGodot
+	public Dictionary updateSubscriptionOffer(String productId, String planId, String offerId, String oldPurchaseToken, String externalTransactionId, int subscriptionReplacementMode) {
+		ProductDetails productDetails = getSubscriptionProductDetails("updateSubscriptionOffer", productId);
+		if (productDetails == null) return new Dictionary();
 
-		BillingFlowParams.SubscriptionUpdateParams subscriptionUpdateParams;
+		ProductDetails.SubscriptionOfferDetails selectedOffer = subscriptionOfferIndex.getOffer(productId, planId, offerId);
+		return launchSubscriptionOffer("updateSubscriptionOffer", productDetails, selectedOffer,
+				createSubscriptionUpdateParams(oldPurchaseToken, externalTransactionId, subscriptionReplacementMode));
+	}
 
+	private BillingFlowParams.SubscriptionUpdateParams createSubscriptionUpdateParams(String oldPurchaseToken, String externalTransactionId, int subscriptionReplacementMode) {
 		if (externalTransactionId == null || externalTransactionId.isEmpty()) {
-			subscriptionUpdateParams = BillingFlowParams.SubscriptionUpdateParams.newBuilder()
+			return BillingFlowParams.SubscriptionUpdateParams.newBuilder()
 					.setOldPurchaseToken(oldPurchaseToken)
 					.setSubscriptionReplacementMode(subscriptionReplacementMode)
 					.build();
 		} else {
-			subscriptionUpdateParams = BillingFlowParams.SubscriptionUpdateParams.newBuilder()
+			return BillingFlowParams.SubscriptionUpdateParams.newBuilder()
 					.setOldPurchaseToken(oldPurchaseToken)
 					.setOriginalExternalTransactionId(externalTransactionId)
 					.setSubscriptionReplacementMode(subscriptionReplacementMode)
 					.build();
 		}
-
-		BillingResult billingResult = launchPurchaseFlowSubscription(productDetails, selectedOffer, subscriptionUpdateParams);
-		return GooglePlayBillingUtils.convertFromBillingResult(billingResult);
 	}
 
 	private BillingFlowParams CreateBillingFlow(List<BillingFlowParams.ProductDetailsParams> allProductDetailsParams, BillingFlowParams.SubscriptionUpdateParams subscriptionUpdateParams) {
@@ -462,11 +1487,18 @@ public class GodotGooglePlayBilling extends GodotPlugin {
 		signals.add(new SignalInfo(BILLING_SERVICE_DISCONNECTED));
 		signals.add(new SignalInfo(BILLING_SETUP_FINISHED, Object.class)); // BillingResult
 		signals.add(new SignalInfo(PRODUCT_DETAILS_QUERY_COMPLETED, Object.class, Object[].class)); // BillingResult, ProductDetails[]
+		signals.add(new SignalInfo(PRODUCT_DETAILS_QUERY_COMPLETED_COMPACT, Object.class, byte[].class)); // BillingResult, compact ProductDetails[]
 		signals.add(new SignalInfo(QUERY_PURCHASES_RESPONSE, Object.class, Object[].class)); // BillingResult, Purchase[]
+		signals.add(new SignalInfo(QUERY_ALL_PURCHASES_RESPONSE, Object.class, Object[].class)); // BillingResult by product type, Purchase[]
 		signals.add(new SignalInfo(PURCHASES_UPDATED, Object.class, Object[].class)); // BillingResult, Purchase[]
+		signals.add(new SignalInfo(PURCHASES_CHANGED, Object[].class, Object[].class, Object[].class)); // added Purchase[], changed Purchase[], removed purchaseToken[]
 		signals.add(new SignalInfo(ACKNOWLEDGE_PURCHASE_RESPONSE, Object.class, String.class)); // BillingResult, purchaseToken
 		signals.add(new SignalInfo(CONSUME_RESPONSE, Object.class, String.class)); // BillingResult, purchaseToken
+		signals.add(new SignalInfo(PURCHASES_COMPLETED, Object[].class)); // completion result[]
 		signals.add(new SignalInfo(BILLING_RESUMED));
+		signals.add(new SignalInfo(BILLING_METRICS, Object.class)); // metrics Dictionary
+		signals.add(new SignalInfo(PENDING_PURCHASE_RESOLVED, String.class, String.class, Object.class)); // purchaseToken, "purchased" or "canceled", Purchase (empty when canceled)
+		signals.add(new SignalInfo(ENTITLEMENTS_READY));
 		return signals;
 	}
 
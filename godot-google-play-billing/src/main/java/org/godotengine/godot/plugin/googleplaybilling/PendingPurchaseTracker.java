@@ -0,0 +1,166 @@
+/*************************************************************************/
+/*  PendingPurchaseTracker.java                                          */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Follows pending purchases and pending subscription updates until they are
+ * purchased or cancelled. Pending purchases are keyed by their purchase token;
+ * pending updates by the token of the purchase they update, and they resolve
+ * under the token of their getPendingPurchaseUpdate().
+ */
+public class PendingPurchaseTracker {
+	public static final String RESOLVED_PURCHASED = "purchased";
+	public static final String RESOLVED_CANCELED = "canceled";
+
+	public static class Transition {
+		public final String purchaseToken;
+		public final String result;
+		public final Purchase purchase; // null when cancelled
+
+		Transition(String purchaseToken, String result, Purchase purchase) {
+			this.purchaseToken = purchaseToken;
+			this.result = result;
+			this.purchase = purchase;
+		}
+	}
+
+	public static class Result {
+		public final List<Transition> transitions = new ArrayList<>();
+		public int added;
+	}
+
+	// Only one-time products can be pending (PendingPurchasesParams.enableOneTimeProducts()),
+	// while pending updates only exist for subscriptions.
+	private final Set<String> pendingPurchaseTokens = new HashSet<>();
+	private final HashMap<String, String> pendingUpdateTokensByPurchaseToken = new HashMap<>();
+
+	// complete is true for the full query result of productType. Only then can purchases
+	// missing from it be reported as cancelled.
+	public synchronized Result observe(String productType, List<Purchase> purchases, boolean complete) {
+		Result result = new Result();
+		HashMap<String, Purchase> purchasesByPurchaseToken = new HashMap<>();
+
+		if (purchases != null) {
+			for (Purchase purchase : purchases) {
+				String purchaseToken = purchase.getPurchaseToken();
+				purchasesByPurchaseToken.put(purchaseToken, purchase);
+
+				int purchaseState = purchase.getPurchaseState();
+				if (purchaseState == Purchase.PurchaseState.PENDING) {
+					if (pendingPurchaseTokens.add(purchaseToken)) {
+						result.added++;
+					}
+				} else if (pendingPurchaseTokens.remove(purchaseToken)) {
+					boolean purchased = purchaseState == Purchase.PurchaseState.PURCHASED;
+					result.transitions.add(new Transition(purchaseToken, purchased ? RESOLVED_PURCHASED : RESOLVED_CANCELED, purchased ? purchase : null));
+				}
+
+				Purchase.PendingPurchaseUpdate pendingPurchaseUpdate = purchase.getPendingPurchaseUpdate();
+				if (pendingPurchaseUpdate != null) {
+					String previousUpdateToken = pendingUpdateTokensByPurchaseToken.put(purchaseToken, pendingPurchaseUpdate.getPurchaseToken());
+					if (previousUpdateToken == null) {
+						result.added++;
+					} else if (!previousUpdateToken.equals(pendingPurchaseUpdate.getPurchaseToken())) {
+						// Replaced by another update before it went through.
+						result.transitions.add(new Transition(previousUpdateToken, RESOLVED_CANCELED, null));
+						result.added++;
+					}
+				}
+			}
+		}
+
+		if (complete && BillingClient.ProductType.INAPP.equals(productType)) {
+			Iterator<String> iterator = pendingPurchaseTokens.iterator();
+			while (iterator.hasNext()) {
+				String purchaseToken = iterator.next();
+				if (purchasesByPurchaseToken.containsKey(purchaseToken)) continue;
+
+				iterator.remove();
+				result.transitions.add(new Transition(purchaseToken, RESOLVED_CANCELED, null));
+			}
+		}
+
+		Iterator<Map.Entry<String, String>> iterator = pendingUpdateTokensByPurchaseToken.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, String> entry = iterator.next();
+
+			Purchase updatedPurchase = purchasesByPurchaseToken.get(entry.getValue());
+			if (updatedPurchase != null && updatedPurchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED) {
+				iterator.remove();
+				result.transitions.add(new Transition(entry.getValue(), RESOLVED_PURCHASED, updatedPurchase));
+			} else if (complete && BillingClient.ProductType.SUBS.equals(productType)) {
+				Purchase purchase = purchasesByPurchaseToken.get(entry.getKey());
+				if (purchase == null || purchase.getPendingPurchaseUpdate() == null) {
+					iterator.remove();
+					result.transitions.add(new Transition(entry.getValue(), RESOLVED_CANCELED, null));
+				}
+			}
+		}
+
+		return result;
+	}
+
+	public synchronized boolean isEmpty() {
+		return pendingPurchaseTokens.isEmpty() && pendingUpdateTokensByPurchaseToken.isEmpty();
+	}
+
+	// The product types that have to be queried to resolve what is still pending.
+	public synchronized List<String> getPendingProductTypes() {
+		List<String> productTypes = new ArrayList<>();
+		if (!pendingPurchaseTokens.isEmpty()) productTypes.add(BillingClient.ProductType.INAPP);
+		if (!pendingUpdateTokensByPurchaseToken.isEmpty()) productTypes.add(BillingClient.ProductType.SUBS);
+		return productTypes;
+	}
+
+	// The tokens transitions will be reported under.
+	public synchronized String[] getPendingPurchaseTokens() {
+		List<String> purchaseTokens = new ArrayList<>(pendingPurchaseTokens);
+		purchaseTokens.addAll(pendingUpdateTokensByPurchaseToken.values());
+		return purchaseTokens.toArray(new String[0]);
+	}
+
+	public synchronized void clear() {
+		pendingPurchaseTokens.clear();
+		pendingUpdateTokensByPurchaseToken.clear();
+	}
+}
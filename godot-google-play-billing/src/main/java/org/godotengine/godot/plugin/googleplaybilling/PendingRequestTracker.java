@@ -0,0 +1,67 @@
+/*************************************************************************/
+/*  PendingRequestTracker.java                                           */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out the request IDs returned by the plugin's async methods and echoed in
+ * their response signals, and counts the requests still waiting for a response.
+ * Timeouts are enforced per billing call by the plugin's watchdog, whose
+ * SERVICE_TIMEOUT response finishes the request like any other.
+ */
+public class PendingRequestTracker {
+	// Never handed out, marks signals that don't answer a request.
+	public static final int NO_REQUEST_ID = 0;
+
+	private final AtomicInteger lastRequestId = new AtomicInteger();
+	private final ConcurrentHashMap<Integer, String> operationsByRequestId = new ConcurrentHashMap<>();
+
+	public int begin(String operation) {
+		int requestId = lastRequestId.incrementAndGet();
+		if (requestId == NO_REQUEST_ID) {
+			requestId = lastRequestId.incrementAndGet();
+		}
+
+		operationsByRequestId.put(requestId, operation);
+		return requestId;
+	}
+
+	// Returns false when the request was already finished.
+	public boolean finish(int requestId) {
+		return operationsByRequestId.remove(requestId) != null;
+	}
+
+	public int getPendingCount() {
+		return operationsByRequestId.size();
+	}
+}
@@ -0,0 +1,103 @@
+/*************************************************************************/
+/*  PreparedPurchaseCache.java                                           */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.ProductDetails;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Built BillingFlowParams, so launching a purchase that was prepared ahead of time
+ * doesn't rebuild them. Each entry remembers the catalog version of its product and
+ * the account it was built for, and is dropped once either changes.
+ */
+public class PreparedPurchaseCache {
+	public static class PreparedPurchase {
+		public final BillingFlowParams billingFlowParams;
+		public final List<String> productIds;
+		final long catalogVersion;
+		final String accountKey;
+
+		public PreparedPurchase(BillingFlowParams billingFlowParams, List<String> productIds, long catalogVersion, String accountKey) {
+			this.billingFlowParams = billingFlowParams;
+			this.productIds = productIds;
+			this.catalogVersion = catalogVersion;
+			this.accountKey = accountKey;
+		}
+	}
+
+	private final AtomicLong lastCatalogVersion = new AtomicLong();
+	private final ConcurrentHashMap<String, Long> catalogVersionsByProductId = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, PreparedPurchase> preparedPurchasesByKey = new ConcurrentHashMap<>();
+
+	// Read before building the params, so an entry built from details that were
+	// refreshed in the meantime is never served.
+	public long getCatalogVersion(String productId) {
+		Long catalogVersion = catalogVersionsByProductId.get(productId);
+		return catalogVersion == null ? 0 : catalogVersion;
+	}
+
+	public void onProductDetailsUpdated(List<ProductDetails> allProductDetails) {
+		if (allProductDetails == null) return;
+
+		for (int i = 0; i < allProductDetails.size(); i++) {
+			catalogVersionsByProductId.put(allProductDetails.get(i).getProductId(), lastCatalogVersion.incrementAndGet());
+		}
+	}
+
+	public PreparedPurchase get(String productId, String planId, String accountKey) {
+		String key = key(productId, planId);
+		PreparedPurchase preparedPurchase = preparedPurchasesByKey.get(key);
+		if (preparedPurchase == null) return null;
+
+		if (preparedPurchase.catalogVersion != getCatalogVersion(productId) || !preparedPurchase.accountKey.equals(accountKey)) {
+			preparedPurchasesByKey.remove(key, preparedPurchase);
+			return null;
+		}
+		return preparedPurchase;
+	}
+
+	public void put(String productId, String planId, PreparedPurchase preparedPurchase) {
+		preparedPurchasesByKey.put(key(productId, planId), preparedPurchase);
+	}
+
+	public void clear() {
+		preparedPurchasesByKey.clear();
+	}
+
+	// planId is null for one-time products.
+	private static String key(String productId, String planId) {
+		return planId == null ? productId : productId + "\n" + planId;
+	}
+}
@@ -0,0 +1,348 @@
+/*************************************************************************/
+/*  ProductDetailsCache.java                                             */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import org.godotengine.godot.Dictionary;
+import org.godotengine.godot.plugin.googleplaybilling.utils.GooglePlayBillingUtils;
+
+import com.android.billingclient.api.ProductDetails;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persists the converted product details payloads (the dictionaries emitted with
+ * product_details_query_completed) so a store can be rendered before Play answers.
+ * Entries older than the TTL are still served, but are reported as stale so they
+ * can be revalidated in the background; products a query no longer returns are evicted.
+ */
+public class ProductDetailsCache {
+	private static final int FILE_MAGIC = 0x47504443; // "GPDC"
+	private static final int FILE_VERSION = 1;
+
+	private static final byte TYPE_NULL = 0;
+	private static final byte TYPE_STRING = 1;
+	private static final byte TYPE_INT = 2;
+	private static final byte TYPE_LONG = 3;
+	private static final byte TYPE_BOOLEAN = 4;
+	private static final byte TYPE_ARRAY = 5;
+	private static final byte TYPE_DICTIONARY = 6;
+
+	public static final long DEFAULT_TTL_MILLIS = 6 * 60 * 60 * 1000L;
+
+	private static class Entry {
+		final Dictionary productDetails;
+		final long fetchedAt;
+
+		Entry(Dictionary productDetails, long fetchedAt) {
+			this.productDetails = productDetails;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	private final File cacheFile;
+	// Loads, puts and saves run in order on this thread, created on first use. Readers
+	// only see the immutable snapshot it publishes, so they never wait for file I/O.
+	private ExecutorService ioExecutor;
+	// Only touched on ioExecutor.
+	private final LinkedHashMap<String, Entry> entriesByProductId = new LinkedHashMap<>();
+	private boolean loadAttempted;
+	private volatile Map<String, Entry> publishedEntriesByProductId = Collections.emptyMap();
+	private volatile boolean loaded;
+	private volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+
+	public ProductDetailsCache(File filesDir) {
+		cacheFile = new File(filesDir, "godot_google_play_billing_product_details.bin");
+	}
+
+	public void setTtlMillis(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	public void preload() {
+		getIoExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				ensureLoaded();
+			}
+		});
+	}
+
+	// Until the cache file has been read, the cache looks empty.
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	public Object[] getProductDetails() {
+		Map<String, Entry> entries = publishedEntriesByProductId;
+		Object[] allDictionaries = new Object[entries.size()];
+		int i = 0;
+		for (Entry entry : entries.values()) {
+			allDictionaries[i++] = entry.productDetails;
+		}
+		return allDictionaries;
+	}
+
+	// Returns [productIds, productTypes] for every entry past its TTL, ready for queryProductDetails.
+	public String[][] getStaleProducts() {
+		long now = System.currentTimeMillis();
+		List<String> productIds = new ArrayList<>();
+		List<String> productTypes = new ArrayList<>();
+
+		for (Map.Entry<String, Entry> entry : publishedEntriesByProductId.entrySet()) {
+			if (now - entry.getValue().fetchedAt < ttlMillis) {
+				continue;
+			}
+			Object productType = entry.getValue().productDetails.get("product_type");
+			if (!(productType instanceof String)) {
+				continue;
+			}
+			productIds.add(entry.getKey());
+			productTypes.add((String)productType);
+		}
+
+		return new String[][] { productIds.toArray(new String[0]), productTypes.toArray(new String[0]) };
+	}
+
+	// Stores the result of a successful query for queriedProductIds. Queried products
+	// Play returned no details for have left the catalog, and are dropped.
+	public void put(final List<String> queriedProductIds, final Object[] allProductDetails) {
+		final long now = System.currentTimeMillis();
+		getIoExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				putAll(queriedProductIds, allProductDetails, now);
+			}
+		});
+	}
+
+	// For callers that never build the dictionaries themselves, e.g. compact signals.
+	// They are converted on the cache's I/O thread.
+	public void putProductDetails(final List<String> queriedProductIds, final List<ProductDetails> allProductDetails) {
+		final long now = System.currentTimeMillis();
+		getIoExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				putAll(queriedProductIds, GooglePlayBillingUtils.convertFromProductDetailsArr(allProductDetails, null), now);
+			}
+		});
+	}
+
+	public void clear() {
+		getIoExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				loadAttempted = true;
+				entriesByProductId.clear();
+				publish();
+				if (cacheFile.exists() && !cacheFile.delete()) {
+					System.out.println("ProductDetailsCache>could not delete " + cacheFile);
+				}
+			}
+		});
+	}
+
+	private synchronized ExecutorService getIoExecutor() {
+		if (ioExecutor == null) {
+			ioExecutor = Executors.newSingleThreadExecutor();
+		}
+		return ioExecutor;
+	}
+
+	private void putAll(List<String> queriedProductIds, Object[] allProductDetails, long now) {
+		ensureLoaded();
+		boolean changed = false;
+		Set<String> returnedProductIds = new HashSet<>();
+		for (Object productDetails : allProductDetails) {
+			Dictionary dictionary = (Dictionary)productDetails;
+			Object productId = dictionary.get("product_id");
+			if (productId instanceof String) {
+				entriesByProductId.put((String)productId, new Entry(dictionary, now));
+				returnedProductIds.add((String)productId);
+				changed = true;
+			}
+		}
+		for (String productId : queriedProductIds) {
+			if (!returnedProductIds.contains(productId) && entriesByProductId.remove(productId) != null) {
+				changed = true;
+			}
+		}
+		if (!changed) return;
+
+		publish();
+		save();
+	}
+
+	private void publish() {
+		publishedEntriesByProductId = Collections.unmodifiableMap(new LinkedHashMap<>(entriesByProductId));
+		loaded = true;
+	}
+
+	private void ensureLoaded() {
+		if (loadAttempted) return;
+		loadAttempted = true;
+
+		if (cacheFile.exists()) {
+			load();
+		}
+		publish();
+	}
+
+	private void load() {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+				System.out.println("ProductDetailsCache>ignoring cache file with unknown format");
+				return;
+			}
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String productId = in.readUTF();
+				long fetchedAt = in.readLong();
+				Object productDetails = readValue(in);
+				if (productDetails instanceof Dictionary) {
+					entriesByProductId.put(productId, new Entry((Dictionary)productDetails, fetchedAt));
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			System.out.println("ProductDetailsCache>failed to read cache file: " + e);
+			entriesByProductId.clear();
+		}
+	}
+
+	private void save() {
+		File tempFile = new File(cacheFile.getPath() + ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(entriesByProductId.size());
+			for (Map.Entry<String, Entry> entry : entriesByProductId.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue().fetchedAt);
+				writeValue(out, entry.getValue().productDetails);
+			}
+		} catch (IOException e) {
+			System.out.println("ProductDetailsCache>failed to write cache file: " + e);
+			tempFile.delete();
+			return;
+		}
+
+		if (!tempFile.renameTo(cacheFile)) {
+			System.out.println("ProductDetailsCache>failed to replace " + cacheFile);
+			tempFile.delete();
+		}
+	}
+
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(TYPE_NULL);
+		} else if (value instanceof String) {
+			out.writeByte(TYPE_STRING);
+			out.writeUTF((String)value);
+		} else if (value instanceof Integer) {
+			out.writeByte(TYPE_INT);
+			out.writeInt((Integer)value);
+		} else if (value instanceof Long) {
+			out.writeByte(TYPE_LONG);
+			out.writeLong((Long)value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(TYPE_BOOLEAN);
+			out.writeBoolean((Boolean)value);
+		} else if (value instanceof Object[]) {
+			Object[] array = (Object[])value;
+			out.writeByte(TYPE_ARRAY);
+			out.writeInt(array.length);
+			for (Object element : array) {
+				writeValue(out, element);
+			}
+		} else if (value instanceof Dictionary) {
+			Dictionary dictionary = (Dictionary)value;
+			out.writeByte(TYPE_DICTIONARY);
+			out.writeInt(dictionary.size());
+			for (Map.Entry<String, Object> entry : dictionary.entrySet()) {
+				out.writeUTF(entry.getKey());
+				writeValue(out, entry.getValue());
+			}
+		} else {
+			throw new IOException("unsupported value type " + value.getClass().getName());
+		}
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+			case TYPE_NULL:
+				return null;
+			case TYPE_STRING:
+				return in.readUTF();
+			case TYPE_INT:
+				return in.readInt();
+			case TYPE_LONG:
+				return in.readLong();
+			case TYPE_BOOLEAN:
+				return in.readBoolean();
+			case TYPE_ARRAY: {
+				Object[] array = new Object[in.readInt()];
+				for (int i = 0; i < array.length; i++) {
+					array[i] = readValue(in);
+				}
+				return array;
+			}
+			case TYPE_DICTIONARY: {
+				Dictionary dictionary = new Dictionary();
+				int size = in.readInt();
+				for (int i = 0; i < size; i++) {
+					String key = in.readUTF();
+					dictionary.put(key, readValue(in));
+				}
+				return dictionary;
+			}
+			default:
+				throw new IOException("unknown value type " + type);
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*************************************************************************/
+/*  ProductDetailsQueryCoalescer.java                                    */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges product details requests made within a short window into one query per
+ * product type. Product IDs that are already being queried attach to the pending
+ * query instead of issuing a new one, and every caller is answered with only the
+ * product details it asked for.
+ */
+public class ProductDetailsQueryCoalescer {
+	public interface QueryExecutor {
+		void queryProductDetails(String productType, List<String> productIds, ProductDetailsResponseListener listener);
+	}
+
+	public static final long COALESCING_WINDOW_MILLIS = 50;
+
+	private static class Query {
+		final String productType;
+		final Set<String> productIds = new LinkedHashSet<>();
+		final List<Waiter> waiters = new ArrayList<>();
+
+		Query(String productType) {
+			this.productType = productType;
+		}
+	}
+
+	private static class Waiter {
+		final Set<String> productIds = new LinkedHashSet<>();
+		final List<ProductDetails> productDetails = new ArrayList<>();
+		final ProductDetailsResponseListener listener;
+		int pendingQueries;
+		BillingResult billingResult;
+
+		Waiter(ProductDetailsResponseListener listener) {
+			this.listener = listener;
+		}
+	}
+
+	private final QueryExecutor queryExecutor;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final Map<String, Query> pendingQueriesByProductType = new HashMap<>();
+	private final Map<String, Query> inFlightQueriesByProductId = new HashMap<>();
+	private boolean flushScheduled;
+
+	private final Runnable flushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	public ProductDetailsQueryCoalescer(QueryExecutor queryExecutor) {
+		this.queryExecutor = queryExecutor;
+	}
+
+	public void queryProductDetails(List<String> productIds, List<String> productTypes, ProductDetailsResponseListener listener) {
+		Waiter waiter = new Waiter(listener);
+
+		synchronized (this) {
+			for (int i = 0; i < productIds.size(); i++) {
+				String productId = productIds.get(i);
+				if (!waiter.productIds.add(productId)) {
+					continue;
+				}
+
+				Query query = inFlightQueriesByProductId.get(productId);
+				if (query == null) {
+					String productType = productTypes.get(i);
+					query = pendingQueriesByProductType.get(productType);
+					if (query == null) {
+						query = new Query(productType);
+						pendingQueriesByProductType.put(productType, query);
+					}
+					query.productIds.add(productId);
+				}
+
+				if (!query.waiters.contains(waiter)) {
+					query.waiters.add(waiter);
+					waiter.pendingQueries++;
+				}
+			}
+
+			if (waiter.pendingQueries > 0 && !pendingQueriesByProductType.isEmpty() && !flushScheduled) {
+				flushScheduled = true;
+				handler.postDelayed(flushRunnable, COALESCING_WINDOW_MILLIS);
+			}
+		}
+
+		if (waiter.pendingQueries == 0) {
+			BillingResult billingResult = BillingResult.newBuilder()
+					.setResponseCode(BillingClient.BillingResponseCode.DEVELOPER_ERROR)
+					.setDebugMessage("Product list must not be empty")
+					.build();
+			listener.onProductDetailsResponse(billingResult, new ArrayList<ProductDetails>());
+		}
+	}
+
+	private void flush() {
+		List<Query> queries;
+
+		synchronized (this) {
+			flushScheduled = false;
+			queries = new ArrayList<>(pendingQueriesByProductType.values());
+			pendingQueriesByProductType.clear();
+
+			for (Query query : queries) {
+				for (String productId : query.productIds) {
+					inFlightQueriesByProductId.put(productId, query);
+				}
+			}
+		}
+
+		for (final Query query : queries) {
+			queryExecutor.queryProductDetails(query.productType, new ArrayList<>(query.productIds), new ProductDetailsResponseListener() {
+				@Override
+				public void onProductDetailsResponse(BillingResult billingResult, List<ProductDetails> productDetailsList) {
+					onQueryCompleted(query, billingResult, productDetailsList);
+				}
+			});
+		}
+	}
+
+	private void onQueryCompleted(Query query, BillingResult billingResult, List<ProductDetails> productDetailsList) {
+		List<Waiter> completedWaiters = new ArrayList<>();
+
+		synchronized (this) {
+			for (String productId : query.productIds) {
+				if (inFlightQueriesByProductId.get(productId) == query) {
+					inFlightQueriesByProductId.remove(productId);
+				}
+			}
+
+			for (Waiter waiter : query.waiters) {
+				if (productDetailsList != null) {
+					for (ProductDetails productDetails : productDetailsList) {
+						if (waiter.productIds.contains(productDetails.getProductId())) {
+							waiter.productDetails.add(productDetails);
+						}
+					}
+				}
+
+				// A failed query takes precedence, so callers never mistake a partial result for a complete one.
+				if (waiter.billingResult == null || billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+					waiter.billingResult = billingResult;
+				}
+
+				if (--waiter.pendingQueries == 0) {
+					completedWaiters.add(waiter);
+				}
+			}
+		}
+
+		for (Waiter waiter : completedWaiters) {
+			waiter.listener.onProductDetailsResponse(waiter.billingResult, waiter.productDetails);
+		}
+	}
+}
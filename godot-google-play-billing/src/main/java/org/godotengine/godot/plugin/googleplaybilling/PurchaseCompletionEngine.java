@@ -0,0 +1,237 @@
+/*************************************************************************/
+/*  PurchaseCompletionEngine.java                                        */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.godotengine.godot.Dictionary;
+import org.godotengine.godot.plugin.googleplaybilling.utils.GooglePlayBillingUtils;
+
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Acknowledges or consumes purchased products according to per-product rules,
+ * with a bounded number of concurrent requests and retries for transient errors.
+ * The outcome of every purchase completed in a burst is reported in one batch.
+ */
+public class PurchaseCompletionEngine {
+	public interface CompletionExecutor {
+		void acknowledgePurchase(String purchaseToken, AcknowledgePurchaseResponseListener listener);
+		void consumePurchase(String purchaseToken, ConsumeResponseListener listener);
+	}
+
+	public interface CompletionListener {
+		void onPurchasesCompleted(Object[] results);
+	}
+
+	public static final String ACTION_ACKNOWLEDGE = "acknowledge";
+	public static final String ACTION_CONSUME = "consume";
+
+	private static final int MAX_CONCURRENT_REQUESTS = 2;
+	private static final int MAX_ATTEMPTS = 4;
+	private static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+	private static final int MAX_COMPLETED_TOKENS = 256;
+
+	private static class Task {
+		final Purchase purchase;
+		final String action;
+		int attempt;
+
+		Task(Purchase purchase, String action) {
+			this.purchase = purchase;
+			this.action = action;
+		}
+	}
+
+	private final CompletionExecutor completionExecutor;
+	private final CompletionListener completionListener;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final ConcurrentHashMap<String, Boolean> consumableByProductId = new ConcurrentHashMap<>();
+
+	private final ArrayDeque<Task> queuedTasks = new ArrayDeque<>();
+	private final Set<String> activePurchaseTokens = new HashSet<>();
+	private final LinkedHashMap<String, Boolean> completedPurchaseTokens = new LinkedHashMap<String, Boolean>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_COMPLETED_TOKENS;
+		}
+	};
+	private final List<Object> pendingResults = new ArrayList<>();
+	private int runningRequests;
+	private int scheduledRetries;
+
+	public PurchaseCompletionEngine(CompletionExecutor completionExecutor, CompletionListener completionListener) {
+		this.completionExecutor = completionExecutor;
+		this.completionListener = completionListener;
+	}
+
+	public void setRule(String productId, boolean consumable) {
+		consumableByProductId.put(productId, consumable);
+	}
+
+	public void removeRule(String productId) {
+		consumableByProductId.remove(productId);
+	}
+
+	public void clearRules() {
+		consumableByProductId.clear();
+	}
+
+	public void process(List<Purchase> purchases) {
+		if (purchases == null || consumableByProductId.isEmpty()) return;
+
+		synchronized (this) {
+			for (Purchase purchase : purchases) {
+				if (purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED) continue;
+
+				String purchaseToken = purchase.getPurchaseToken();
+				if (activePurchaseTokens.contains(purchaseToken) || completedPurchaseTokens.containsKey(purchaseToken)) continue;
+
+				String action = resolveAction(purchase);
+				if (action == null) continue;
+
+				activePurchaseTokens.add(purchaseToken);
+				queuedTasks.add(new Task(purchase, action));
+			}
+		}
+
+		runQueuedTasks();
+	}
+
+	// Consumables are consumed; anything else with a rule is acknowledged once. Purchases
+	// containing a product without a rule are left to the game.
+	private String resolveAction(Purchase purchase) {
+		boolean allConsumable = true;
+
+		for (String productId : purchase.getProducts()) {
+			Boolean consumable = consumableByProductId.get(productId);
+			if (consumable == null) return null;
+			allConsumable &= consumable;
+		}
+
+		if (allConsumable) return ACTION_CONSUME;
+		return purchase.isAcknowledged() ? null : ACTION_ACKNOWLEDGE;
+	}
+
+	private void runQueuedTasks() {
+		while (true) {
+			final Task task;
+			synchronized (this) {
+				if (runningRequests >= MAX_CONCURRENT_REQUESTS || queuedTasks.isEmpty()) return;
+				task = queuedTasks.poll();
+				runningRequests++;
+			}
+			task.attempt++;
+
+			final String purchaseToken = task.purchase.getPurchaseToken();
+			if (ACTION_CONSUME.equals(task.action)) {
+				completionExecutor.consumePurchase(purchaseToken, new ConsumeResponseListener() {
+					@Override
+					public void onConsumeResponse(BillingResult billingResult, String token) {
+						onTaskFinished(task, billingResult);
+					}
+				});
+			} else {
+				completionExecutor.acknowledgePurchase(purchaseToken, new AcknowledgePurchaseResponseListener() {
+					@Override
+					public void onAcknowledgePurchaseResponse(BillingResult billingResult) {
+						onTaskFinished(task, billingResult);
+					}
+				});
+			}
+		}
+	}
+
+	private void onTaskFinished(final Task task, BillingResult billingResult) {
+		Object[] completedResults = null;
+		String purchaseToken = task.purchase.getPurchaseToken();
+
+		synchronized (this) {
+			runningRequests--;
+
+			if (BillingResponses.isRetryable(billingResult.getResponseCode()) && task.attempt < MAX_ATTEMPTS) {
+				scheduledRetries++;
+				handler.postDelayed(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (PurchaseCompletionEngine.this) {
+							scheduledRetries--;
+							queuedTasks.add(task);
+						}
+						runQueuedTasks();
+					}
+				}, INITIAL_RETRY_DELAY_MILLIS << (task.attempt - 1));
+			} else {
+				activePurchaseTokens.remove(purchaseToken);
+				if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+					completedPurchaseTokens.put(purchaseToken, Boolean.TRUE);
+				}
+				pendingResults.add(convertResult(task, billingResult));
+			}
+
+			// Report once the burst has fully settled, so the game gets a single signal.
+			if (runningRequests == 0 && queuedTasks.isEmpty() && scheduledRetries == 0 && !pendingResults.isEmpty()) {
+				completedResults = pendingResults.toArray();
+				pendingResults.clear();
+			}
+		}
+
+		if (completedResults != null) {
+			completionListener.onPurchasesCompleted(completedResults);
+		}
+		runQueuedTasks();
+	}
+
+	private static Dictionary convertResult(Task task, BillingResult billingResult) {
+		Dictionary dictionary = new Dictionary();
+		dictionary.put("action", task.action); // String
+		dictionary.put("attempts", task.attempt); // int
+		dictionary.put("billing_result", GooglePlayBillingUtils.convertFromBillingResult(billingResult)); // Dictionary
+		dictionary.put("products", task.purchase.getProducts().toArray()); // String[]
+		dictionary.put("purchase_token", task.purchase.getPurchaseToken()); // String
+		dictionary.put("quantity", task.purchase.getQuantity()); // int
+		return dictionary;
+	}
+}
@@ -0,0 +1,241 @@
+/*************************************************************************/
+/*  SignalDispatcher.java                                                */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import org.godotengine.godot.Dictionary;
+import org.godotengine.godot.plugin.googleplaybilling.utils.GooglePlayBillingUtils;
+
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts and emits billing signals from a single worker thread, so billing
+ * callbacks never do the dictionary conversion themselves. Purchase signals that
+ * arrive within one frame are merged into a single signal per response code, up
+ * to the configured batch size. Signals are emitted in the order they were
+ * submitted.
+ */
+public class SignalDispatcher {
+	public interface Emitter {
+		void emit(String signal, Object[] args);
+	}
+
+	public interface FieldSelector {
+		Set<String> getFields(String signal);
+	}
+
+	public static final long FRAME_MILLIS = 16;
+	public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+	private static class PurchaseBatch {
+		final String signal;
+		final BillingResult billingResult;
+		final LinkedHashSet<Integer> requestIds = new LinkedHashSet<>();
+		final LinkedHashMap<String, Purchase> purchasesByPurchaseToken = new LinkedHashMap<>();
+
+		PurchaseBatch(String signal, BillingResult billingResult) {
+			this.signal = signal;
+			this.billingResult = billingResult;
+		}
+	}
+
+	private final Emitter emitter;
+	private final FieldSelector fieldSelector;
+	// Created on the first emit.
+	private ScheduledExecutorService worker;
+	private final Set<String> coalescedSignals = ConcurrentHashMap.newKeySet();
+
+	// Only touched on the worker thread.
+	private final LinkedHashMap<String, PurchaseBatch> pendingBatches = new LinkedHashMap<>();
+	private boolean flushScheduled;
+	private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+	private final Runnable flushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			flushScheduled = false;
+			flushPendingBatches();
+		}
+	};
+
+	public SignalDispatcher(Emitter emitter, FieldSelector fieldSelector) {
+		this.emitter = emitter;
+		this.fieldSelector = fieldSelector;
+	}
+
+	public void setCoalescing(String signal, boolean enabled) {
+		if (enabled) {
+			coalescedSignals.add(signal);
+		} else {
+			coalescedSignals.remove(signal);
+		}
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+	}
+
+	// Runs the task on the worker once everything submitted before it has been emitted.
+	public void execute(final Runnable task) {
+		getWorker().execute(new Runnable() {
+			@Override
+			public void run() {
+				flushPendingBatches();
+				task.run();
+			}
+		});
+	}
+
+	public void emit(final String signal, final Object... args) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				emitter.emit(signal, args);
+			}
+		});
+	}
+
+	public void emitPurchases(String signal, BillingResult billingResult, List<Purchase> purchases) {
+		emitPurchases(signal, billingResult, purchases, PendingRequestTracker.NO_REQUEST_ID);
+	}
+
+	// Coalesced responses to several requests carry the first one as request_id and all
+	// of them, in order, as request_ids.
+	public void emitPurchases(final String signal, final BillingResult billingResult, final List<Purchase> purchases, final int requestId) {
+		final List<Purchase> allPurchases = purchases == null ? new ArrayList<Purchase>() : new ArrayList<>(purchases);
+
+		if (!coalescedSignals.contains(signal)) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					emitPurchaseChunks(signal, billingResult, toRequestIds(requestId), allPurchases);
+				}
+			});
+			return;
+		}
+
+		getWorker().execute(new Runnable() {
+			@Override
+			public void run() {
+				String batchKey = signal + ":" + billingResult.getResponseCode();
+				PurchaseBatch batch = pendingBatches.get(batchKey);
+				if (batch == null) {
+					batch = new PurchaseBatch(signal, billingResult);
+					pendingBatches.put(batchKey, batch);
+				}
+				if (requestId != PendingRequestTracker.NO_REQUEST_ID) {
+					batch.requestIds.add(requestId);
+				}
+				for (Purchase purchase : allPurchases) {
+					batch.purchasesByPurchaseToken.put(purchase.getPurchaseToken(), purchase);
+				}
+
+				if (batch.purchasesByPurchaseToken.size() >= maxBatchSize) {
+					flushPendingBatches();
+				} else if (!flushScheduled) {
+					flushScheduled = true;
+					getWorker().schedule(flushRunnable, FRAME_MILLIS, TimeUnit.MILLISECONDS);
+				}
+			}
+		});
+	}
+
+	public synchronized void shutdown() {
+		if (worker != null) {
+			worker.shutdown();
+		}
+	}
+
+	private synchronized ScheduledExecutorService getWorker() {
+		if (worker == null) {
+			worker = Executors.newSingleThreadScheduledExecutor();
+		}
+		return worker;
+	}
+
+	private void flushPendingBatches() {
+		if (pendingBatches.isEmpty()) return;
+
+		Iterator<PurchaseBatch> iterator = pendingBatches.values().iterator();
+		while (iterator.hasNext()) {
+			PurchaseBatch batch = iterator.next();
+			iterator.remove();
+			emitPurchaseChunks(batch.signal, batch.billingResult, batch.requestIds, new ArrayList<>(batch.purchasesByPurchaseToken.values()));
+		}
+	}
+
+	private void emitPurchaseChunks(String signal, BillingResult billingResult, Collection<Integer> requestIds, List<Purchase> purchases) {
+		Set<String> fields = fieldSelector.getFields(signal);
+		int batchSize = maxBatchSize;
+
+		if (purchases.size() <= batchSize) {
+			emitter.emit(signal, new Object[] { convertFromBillingResult(billingResult, requestIds), GooglePlayBillingUtils.convertFromPurchaseArr(purchases, fields) });
+			return;
+		}
+
+		for (int start = 0; start < purchases.size(); start += batchSize) {
+			List<Purchase> chunk = purchases.subList(start, Math.min(purchases.size(), start + batchSize));
+			emitter.emit(signal, new Object[] { convertFromBillingResult(billingResult, requestIds), GooglePlayBillingUtils.convertFromPurchaseArr(chunk, fields) });
+		}
+	}
+
+	private static Collection<Integer> toRequestIds(int requestId) {
+		if (requestId == PendingRequestTracker.NO_REQUEST_ID) {
+			return Collections.emptyList();
+		}
+		return Collections.singletonList(requestId);
+	}
+
+	private static Dictionary convertFromBillingResult(BillingResult billingResult, Collection<Integer> requestIds) {
+		if (requestIds.isEmpty()) {
+			return GooglePlayBillingUtils.convertFromBillingResult(billingResult);
+		}
+
+		Dictionary dictionary = GooglePlayBillingUtils.convertFromBillingResult(billingResult, requestIds.iterator().next());
+		if (requestIds.size() > 1) {
+			dictionary.put("request_ids", requestIds.toArray()); // int[]
+		}
+		return dictionary;
+	}
+}
@@ -0,0 +1,69 @@
+/*************************************************************************/
+/*  BillingBackend.java                                                  */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.backend;
+
+import android.app.Activity;
+import android.content.Context;
+
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+
+import java.util.List;
+
+/**
+ * The subset of BillingClient used by the plugin. Requests take plain values
+ * instead of the library's params objects, which can't be inspected, so that
+ * backends other than Google Play (e.g. an in-memory fake) can serve them.
+ */
+public interface BillingBackend {
+	interface Factory {
+		BillingBackend create(Context context, PurchasesUpdatedListener purchasesUpdatedListener);
+	}
+
+	void startConnection(BillingClientStateListener listener);
+	void endConnection();
+	boolean isReady();
+	int getConnectionState();
+
+	void queryProductDetails(String productType, List<String> productIds, ProductDetailsResponseListener listener);
+	void queryPurchases(String productType, PurchasesResponseListener listener);
+	void acknowledgePurchase(String purchaseToken, AcknowledgePurchaseResponseListener listener);
+	void consumePurchase(String purchaseToken, ConsumeResponseListener listener);
+
+	// productIds lists the products billingFlowParams was built for.
+	BillingResult launchBillingFlow(Activity activity, BillingFlowParams billingFlowParams, List<String> productIds);
+}
@@ -0,0 +1,227 @@
+/*************************************************************************/
+/*  LazyBillingBackend.java                                              */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+
+package org.godotengine.godot.plugin.googleplaybilling.backend;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Defers creating the wrapped backend (and so the BillingClient) until it is first
+ * needed or an idle delay has passed, keeping it off the cold start path. A
+ * startConnection() issued before then is replayed once the backend exists.
+ */
+public class LazyBillingBackend implements BillingBackend {
+	public static final String TRIGGER_FIRST_USE = "first_use";
+	public static final String TRIGGER_IDLE_DELAY = "idle_delay";
+
+	private final Factory factory;
+	private final Context context;
+	private final PurchasesUpdatedListener purchasesUpdatedListener;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final ExecutorService initExecutor = Executors.newSingleThreadExecutor();
+	private final long createdNanos = System.nanoTime();
+
+	private volatile BillingBackend backend;
+	private boolean initializing;
+	private BillingClientStateListener pendingStateListener;
+	private volatile String initTrigger;
+	private volatile long initDelayMicros = -1;
+	private volatile long initDurationMicros = -1;
+
+	private final Runnable idleInitRunnable = new Runnable() {
+		@Override
+		public void run() {
+			initialize(TRIGGER_IDLE_DELAY);
+		}
+	};
+
+	// idleDelayMillis < 0 only creates the backend on first use.
+	public LazyBillingBackend(Factory factory, Context context, PurchasesUpdatedListener purchasesUpdatedListener, long idleDelayMillis) {
+		this.factory = factory;
+		this.context = context;
+		this.purchasesUpdatedListener = purchasesUpdatedListener;
+
+		if (idleDelayMillis >= 0) {
+			handler.postDelayed(idleInitRunnable, idleDelayMillis);
+		}
+	}
+
+	public boolean isInitialized() {
+		return backend != null;
+	}
+	public String getInitTrigger() {
+		return initTrigger;
+	}
+	// Time from construction until the backend was created, or -1.
+	public long getInitDelayMicros() {
+		return initDelayMicros;
+	}
+	// Time spent creating the backend, or -1.
+	public long getInitDurationMicros() {
+		return initDurationMicros;
+	}
+
+	// Creates the backend on a background thread unless it exists or is being created.
+	public void initialize(final String trigger) {
+		synchronized (this) {
+			if (backend != null || initializing) return;
+			initializing = true;
+		}
+		handler.removeCallbacks(idleInitRunnable);
+
+		initExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				create(trigger);
+			}
+		});
+	}
+
+	private BillingBackend getBackend() {
+		BillingBackend backend = this.backend;
+		return backend != null ? backend : create(TRIGGER_FIRST_USE);
+	}
+
+	// The backend is built outside the lock, so a first use on the main thread never
+	// waits for a background warm-up. If both race, the first one published wins and
+	// the other, never connected, is ended and dropped.
+	private BillingBackend create(String trigger) {
+		BillingBackend backend = this.backend;
+		if (backend != null) return backend;
+
+		long startNanos = System.nanoTime();
+		BillingBackend createdBackend = factory.create(context, purchasesUpdatedListener);
+		long durationMicros = (System.nanoTime() - startNanos) / 1000L;
+
+		BillingBackend publishedBackend;
+		BillingClientStateListener stateListener;
+		synchronized (this) {
+			publishedBackend = this.backend;
+			if (publishedBackend == null) {
+				backend = createdBackend;
+				initDurationMicros = durationMicros;
+				initDelayMicros = (startNanos - createdNanos) / 1000L;
+				initTrigger = trigger;
+
+				this.backend = backend;
+				initializing = false;
+				stateListener = pendingStateListener;
+				pendingStateListener = null;
+			} else {
+				stateListener = null;
+			}
+		}
+		if (publishedBackend != null) {
+			createdBackend.endConnection();
+			return publishedBackend;
+		}
+		handler.removeCallbacks(idleInitRunnable);
+
+		if (stateListener != null) {
+			backend.startConnection(stateListener);
+		}
+		return backend;
+	}
+
+	@Override
+	public void startConnection(BillingClientStateListener listener) {
+		BillingBackend backend;
+		synchronized (this) {
+			backend = this.backend;
+			if (backend == null) {
+				pendingStateListener = listener;
+				return;
+			}
+		}
+		backend.startConnection(listener);
+	}
+	@Override
+	public void endConnection() {
+		BillingBackend backend;
+		synchronized (this) {
+			backend = this.backend;
+			pendingStateListener = null;
+		}
+		handler.removeCallbacks(idleInitRunnable);
+		if (backend != null) {
+			backend.endConnection();
+		}
+	}
+	@Override
+	public boolean isReady() {
+		BillingBackend backend = this.backend;
+		return backend != null && backend.isReady();
+	}
+	@Override
+	public int getConnectionState() {
+		BillingBackend backend = this.backend;
+		return backend != null ? backend.getConnectionState() : BillingClient.ConnectionState.DISCONNECTED;
+	}
+
+	@Override
+	public void queryProductDetails(String productType, List<String> productIds, ProductDetailsResponseListener listener) {
+		getBackend().queryProductDetails(productType, productIds, listener);
+	}
+	@Override
+	public void queryPurchases(String productType, PurchasesResponseListener listener) {
+		getBackend().queryPurchases(productType, listener);
+	}
+	@Override
+	public void acknowledgePurchase(String purchaseToken, AcknowledgePurchaseResponseListener listener) {
+		getBackend().acknowledgePurchase(purchaseToken, listener);
+	}
+	@Override
+	public void consumePurchase(String purchaseToken, ConsumeResponseListener listener) {
+		getBackend().consumePurchase(purchaseToken, listener);
+	}
+
+	@Override
+	public BillingResult launchBillingFlow(Activity activity, BillingFlowParams billingFlowParams, List<String> productIds) {
+		return getBackend().launchBillingFlow(activity, billingFlowParams, productIds);
+	}
+}
@@ -0,0 +1,142 @@
+/*************************************************************************/
+/*  PlayBillingBackend.java                                              */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.backend;
+
+import android.app.Activity;
+import android.content.Context;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.PendingPurchasesParams;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.QueryProductDetailsParams;
+import com.android.billingclient.api.QueryPurchasesParams;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BillingBackend backed by the Google Play BillingClient.
+ */
+public class PlayBillingBackend implements BillingBackend {
+	public static final Factory FACTORY = new Factory() {
+		@Override
+		public BillingBackend create(Context context, PurchasesUpdatedListener purchasesUpdatedListener) {
+			return new PlayBillingBackend(context, purchasesUpdatedListener);
+		}
+	};
+
+	private final BillingClient billingClient;
+
+	public PlayBillingBackend(Context context, PurchasesUpdatedListener purchasesUpdatedListener) {
+		PendingPurchasesParams pendingPurchasesParams =
+			PendingPurchasesParams.newBuilder().enableOneTimeProducts().build();
+
+		billingClient = BillingClient.newBuilder(context)
+				.enablePendingPurchases(pendingPurchasesParams)
+				.setListener(purchasesUpdatedListener)
+				.build();
+	}
+
+	@Override
+	public void startConnection(BillingClientStateListener listener) {
+		billingClient.startConnection(listener);
+	}
+	@Override
+	public void endConnection() {
+		billingClient.endConnection();
+	}
+	@Override
+	public boolean isReady() {
+		return billingClient.isReady();
+	}
+	@Override
+	public int getConnectionState() {
+		return billingClient.getConnectionState();
+	}
+
+	@Override
+	public void queryProductDetails(String productType, List<String> productIds, ProductDetailsResponseListener listener) {
+		List<QueryProductDetailsParams.Product> productList = new ArrayList<>();
+		for (String productId : productIds) {
+			productList.add(QueryProductDetailsParams.Product.newBuilder()
+					.setProductId(productId)
+					.setProductType(productType)
+					.build());
+		}
+
+		QueryProductDetailsParams queryProductDetailsParams =
+				QueryProductDetailsParams.newBuilder()
+						.setProductList(productList)
+						.build();
+
+		billingClient.queryProductDetailsAsync(queryProductDetailsParams, listener);
+	}
+	@Override
+	public void queryPurchases(String productType, PurchasesResponseListener listener) {
+		QueryPurchasesParams queryPurchasesParams =
+				QueryPurchasesParams.newBuilder()
+						.setProductType(productType)
+						.build();
+
+		billingClient.queryPurchasesAsync(queryPurchasesParams, listener);
+	}
+	@Override
+	public void acknowledgePurchase(String purchaseToken, AcknowledgePurchaseResponseListener listener) {
+		AcknowledgePurchaseParams acknowledgePurchaseParams =
+				AcknowledgePurchaseParams.newBuilder()
+						.setPurchaseToken(purchaseToken)
+						.build();
+
+		billingClient.acknowledgePurchase(acknowledgePurchaseParams, listener);
+	}
+	@Override
+	public void consumePurchase(String purchaseToken, ConsumeResponseListener listener) {
+		ConsumeParams consumeParams = ConsumeParams.newBuilder()
+				.setPurchaseToken(purchaseToken)
+				.build();
+
+		billingClient.consumeAsync(consumeParams, listener);
+	}
+
+	@Override
+	public BillingResult launchBillingFlow(Activity activity, BillingFlowParams billingFlowParams, List<String> productIds) {
+		return billingClient.launchBillingFlow(activity, billingFlowParams);
+	}
+}
@@ -0,0 +1,187 @@
+/*************************************************************************/
+/*  CompactProductDetailsEncoder.java                                    */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import com.android.billingclient.api.ProductDetails;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes product details into a single big-endian byte array, so a whole catalog
+ * crosses JNI as one PoolByteArray instead of a tree of Dictionaries. Every string
+ * is interned into a table at the start, which makes repeated currency codes and
+ * billing periods cost four bytes each. google_play_billing_compact.gd decodes it.
+ *
+ * Layout (strings are u32 length + UTF-8, string references are i32 table indexes,
+ * -1 for null):
+ *   u32 magic "GPCD", u8 version
+ *   u32 string count, strings
+ *   u32 product count, per product:
+ *     ref product_id, product_type, title, name, description
+ *     u8 flags (1: one-time offer, 2: subscription offers)
+ *     one-time offer: i64 price_amount_micros, ref formatted_price, ref price_currency_code
+ *     subscription offers: u16 count, per offer:
+ *       ref base_plan_id, offer_id, offer_token
+ *       u16 tag count, ref per tag
+ *       u8 has installment plan, i32 commitment payments, i32 subsequent commitment payments
+ *       u16 pricing phase count, per phase:
+ *         i32 billing_cycle_count, ref billing_period, ref formatted_price,
+ *         i64 price_amount_micros, ref price_currency_code, i32 recurrence_mode
+ */
+public class CompactProductDetailsEncoder {
+	public static final int MAGIC = 0x47504344; // "GPCD"
+	public static final int VERSION = 1;
+
+	private static final int FLAG_ONE_TIME_PURCHASE_OFFER = 1;
+	private static final int FLAG_SUBSCRIPTION_OFFERS = 2;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final List<String> strings = new ArrayList<>();
+	private final Map<String, Integer> stringIndexes = new HashMap<>();
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	private final DataOutputStream out = new DataOutputStream(body);
+
+	private CompactProductDetailsEncoder() {
+	}
+
+	public static byte[] encode(List<ProductDetails> allProductDetails) {
+		CompactProductDetailsEncoder encoder = new CompactProductDetailsEncoder();
+		try {
+			return encoder.encodeProductDetails(allProductDetails == null ? new ArrayList<ProductDetails>() : allProductDetails);
+		} catch (IOException e) {
+			// Only writes to memory, so this can't happen.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private byte[] encodeProductDetails(List<ProductDetails> allProductDetails) throws IOException {
+		out.writeInt(allProductDetails.size());
+		for (int i = 0; i < allProductDetails.size(); i++) {
+			writeProductDetails(allProductDetails.get(i));
+		}
+		out.flush();
+
+		ByteArrayOutputStream result = new ByteArrayOutputStream(body.size() + strings.size() * 16 + 16);
+		DataOutputStream header = new DataOutputStream(result);
+		header.writeInt(MAGIC);
+		header.writeByte(VERSION);
+		header.writeInt(strings.size());
+		for (String string : strings) {
+			byte[] bytes = string.getBytes(UTF_8);
+			header.writeInt(bytes.length);
+			header.write(bytes);
+		}
+		body.writeTo(header);
+		header.flush();
+
+		return result.toByteArray();
+	}
+
+	private void writeProductDetails(ProductDetails productDetails) throws IOException {
+		writeString(productDetails.getProductId());
+		writeString(productDetails.getProductType());
+		writeString(productDetails.getTitle());
+		writeString(productDetails.getName());
+		writeString(productDetails.getDescription());
+
+		ProductDetails.OneTimePurchaseOfferDetails oneTimePurchaseOfferDetails = productDetails.getOneTimePurchaseOfferDetails();
+		List<ProductDetails.SubscriptionOfferDetails> allSubscriptionOfferDetails = productDetails.getSubscriptionOfferDetails();
+
+		int flags = 0;
+		if (oneTimePurchaseOfferDetails != null) flags |= FLAG_ONE_TIME_PURCHASE_OFFER;
+		if (allSubscriptionOfferDetails != null) flags |= FLAG_SUBSCRIPTION_OFFERS;
+		out.writeByte(flags);
+
+		if (oneTimePurchaseOfferDetails != null) {
+			out.writeLong(oneTimePurchaseOfferDetails.getPriceAmountMicros());
+			writeString(oneTimePurchaseOfferDetails.getFormattedPrice());
+			writeString(oneTimePurchaseOfferDetails.getPriceCurrencyCode());
+		}
+
+		if (allSubscriptionOfferDetails != null) {
+			out.writeShort(allSubscriptionOfferDetails.size());
+			for (int i = 0; i < allSubscriptionOfferDetails.size(); i++) {
+				writeSubscriptionOfferDetails(allSubscriptionOfferDetails.get(i));
+			}
+		}
+	}
+
+	private void writeSubscriptionOfferDetails(ProductDetails.SubscriptionOfferDetails subscriptionOfferDetails) throws IOException {
+		writeString(subscriptionOfferDetails.getBasePlanId());
+		writeString(subscriptionOfferDetails.getOfferId());
+		writeString(subscriptionOfferDetails.getOfferToken());
+
+		List<String> offerTags = subscriptionOfferDetails.getOfferTags();
+		out.writeShort(offerTags.size());
+		for (int i = 0; i < offerTags.size(); i++) {
+			writeString(offerTags.get(i));
+		}
+
+		ProductDetails.InstallmentPlanDetails installmentPlanDetails = subscriptionOfferDetails.getInstallmentPlanDetails();
+		out.writeBoolean(installmentPlanDetails != null);
+		out.writeInt(installmentPlanDetails == null ? 0 : installmentPlanDetails.getInstallmentPlanCommitmentPaymentsCount());
+		out.writeInt(installmentPlanDetails == null ? 0 : installmentPlanDetails.getSubsequentInstallmentPlanCommitmentPaymentsCount());
+
+		List<ProductDetails.PricingPhase> pricingPhaseList = subscriptionOfferDetails.getPricingPhases().getPricingPhaseList();
+		out.writeShort(pricingPhaseList.size());
+		for (int i = 0; i < pricingPhaseList.size(); i++) {
+			ProductDetails.PricingPhase pricingPhase = pricingPhaseList.get(i);
+			out.writeInt(pricingPhase.getBillingCycleCount());
+			writeString(pricingPhase.getBillingPeriod());
+			writeString(pricingPhase.getFormattedPrice());
+			out.writeLong(pricingPhase.getPriceAmountMicros());
+			writeString(pricingPhase.getPriceCurrencyCode());
+			out.writeInt(pricingPhase.getRecurrenceMode());
+		}
+	}
+
+	private void writeString(String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		Integer index = stringIndexes.get(value);
+		if (index == null) {
+			index = strings.size();
+			strings.add(value);
+			stringIndexes.put(value, index);
+		}
+		out.writeInt(index);
+	}
+}
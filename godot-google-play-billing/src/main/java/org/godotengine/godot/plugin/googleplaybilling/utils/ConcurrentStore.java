@@ -0,0 +1,76 @@
+/*************************************************************************/
+/*  ConcurrentStore.java                                                 */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keyed store shared between the billing library's listener threads and the Godot
+ * thread. Reads never block, and iteration always works on a snapshot so callers
+ * can't observe a ConcurrentModificationException.
+ */
+public class ConcurrentStore<V> {
+	private final ConcurrentHashMap<String, V> valuesByKey = new ConcurrentHashMap<>();
+
+	public V get(String key) {
+		return valuesByKey.get(key);
+	}
+
+	public boolean containsKey(String key) {
+		return valuesByKey.containsKey(key);
+	}
+
+	public void put(String key, V value) {
+		valuesByKey.put(key, value);
+	}
+
+	public V remove(String key) {
+		return valuesByKey.remove(key);
+	}
+
+	public int size() {
+		return valuesByKey.size();
+	}
+
+	public void clear() {
+		valuesByKey.clear();
+	}
+
+	public List<String> keySnapshot() {
+		return new ArrayList<>(valuesByKey.keySet());
+	}
+
+	public List<V> snapshot() {
+		return new ArrayList<>(valuesByKey.values());
+	}
+}
@@ -0,0 +1,128 @@
+/*************************************************************************/
+/*  DictionarySchema.java                                                */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import org.godotengine.godot.Dictionary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A table of dictionary keys and the getters that produce their values, so one
+ * conversion loop serves every object and key layout. Keys are stored once per
+ * schema and shared by every dictionary it produces.
+ */
+public class DictionarySchema<T> {
+	public interface Getter<T> {
+		Object get(T source);
+	}
+
+	// Getter for keys kept only for layout compatibility, which are always null.
+	private static final Getter<Object> NULL_GETTER = new Getter<Object>() {
+		@Override
+		public Object get(Object source) {
+			return null;
+		}
+	};
+
+	private final String[] keys;
+	private final Getter<? super T>[] getters;
+
+	private DictionarySchema(String[] keys, Getter<? super T>[] getters) {
+		this.keys = keys;
+		this.getters = getters;
+	}
+
+	public static <T> Builder<T> newBuilder() {
+		return new Builder<>();
+	}
+
+	public int size() {
+		return keys.length;
+	}
+
+	// A null source converts to an empty Dictionary.
+	public Dictionary convert(T source) {
+		return convert(source, null);
+	}
+
+	// Only the keys in fields are converted, or every key when fields is null.
+	public Dictionary convert(T source, Set<String> fields) {
+		Dictionary dictionary = new Dictionary();
+		if (source == null) {
+			return dictionary;
+		}
+
+		for (int i = 0; i < keys.length; i++) {
+			if (fields != null && !fields.contains(keys[i])) continue;
+			dictionary.put(keys[i], getters[i].get(source));
+		}
+		return dictionary;
+	}
+
+	public Object[] convertArr(List<? extends T> sources) {
+		return convertArr(sources, null);
+	}
+
+	public Object[] convertArr(List<? extends T> sources, Set<String> fields) {
+		if (sources == null) {
+			return new Object[] {  };
+		}
+
+		Object[] allDictionaries = new Object[sources.size()];
+		for (int i = 0; i < allDictionaries.length; i++) {
+			allDictionaries[i] = convert(sources.get(i), fields);
+		}
+		return allDictionaries;
+	}
+
+	public static class Builder<T> {
+		private final List<String> keys = new ArrayList<>();
+		private final List<Getter<? super T>> getters = new ArrayList<>();
+
+		public Builder<T> add(String key, Getter<? super T> getter) {
+			keys.add(key);
+			getters.add(getter);
+			return this;
+		}
+
+		public Builder<T> addNull(String key) {
+			return add(key, NULL_GETTER);
+		}
+
+		@SuppressWarnings("unchecked")
+		public DictionarySchema<T> build() {
+			return new DictionarySchema<>(keys.toArray(new String[0]), getters.toArray(new Getter[0]));
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*************************************************************************/
+/*  FieldProjection.java                                                 */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import org.godotengine.godot.Dictionary;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-signal selection of the dictionary keys to emit. A signal without a
+ * projection carries every key; otherwise only the selected keys (plus the
+ * required ones, e.g. the key used to fetch the rest on demand) are converted.
+ */
+public class FieldProjection {
+	private final ConcurrentHashMap<String, Set<String>> fieldsBySignal = new ConcurrentHashMap<>();
+
+	public void setFields(String signal, String[] fields, Collection<String> requiredFields) {
+		if (fields == null || fields.length == 0) {
+			fieldsBySignal.remove(signal);
+			return;
+		}
+
+		Set<String> selectedFields = new HashSet<>(Arrays.asList(fields));
+		selectedFields.addAll(requiredFields);
+		fieldsBySignal.put(signal, Collections.unmodifiableSet(selectedFields));
+	}
+
+	public void clear() {
+		fieldsBySignal.clear();
+	}
+
+	// Returns null when the signal should carry every key.
+	public Set<String> getFields(String signal) {
+		return fieldsBySignal.get(signal);
+	}
+
+	// Copies only the selected keys of already converted dictionaries. Values are shared,
+	// not converted again.
+	public static Object[] project(Object[] allDictionaries, Set<String> fields) {
+		if (fields == null) return allDictionaries;
+
+		Object[] allProjectedDictionaries = new Object[allDictionaries.length];
+		for (int i = 0; i < allDictionaries.length; i++) {
+			Dictionary dictionary = (Dictionary)allDictionaries[i];
+			Dictionary projectedDictionary = new Dictionary();
+			for (String field : fields) {
+				if (dictionary.containsKey(field)) {
+					projectedDictionary.put(field, dictionary.get(field));
+				}
+			}
+			allProjectedDictionaries[i] = projectedDictionary;
+		}
+		return allProjectedDictionaries;
+	}
+}
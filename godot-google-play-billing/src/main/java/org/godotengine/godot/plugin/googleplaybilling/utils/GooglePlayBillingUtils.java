@@ -38,106 +38,561 @@ import com.android.billingclient.api.ProductDetails;
 import com.android.billingclient.api.Purchase;
 import com.android.billingclient.api.SkuDetails;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 
 public class GooglePlayBillingUtils {
+	// Legacy layouts, shaped like the SkuDetails based API of PBL 4.
+
+	private static final DictionarySchema<Purchase> LEGACY_PURCHASE_SCHEMA = DictionarySchema.<Purchase>newBuilder()
+			.add("original_json", new DictionarySchema.Getter<Purchase>() {
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getOriginalJson();
+				}
+			})
+			.add("order_id", new DictionarySchema.Getter<Purchase>() {
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getOrderId();
+				}
+			})
+			.add("package_name", new DictionarySchema.Getter<Purchase>() {
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getPackageName();
+				}
+			})
+			.add("purchase_state", new DictionarySchema.Getter<Purchase>() {
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getPurchaseState();
+				}
+			})
+			.add("purchase_time", new DictionarySchema.Getter<Purchase>() {
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getPurchaseTime();
+				}
+			})
+			.add("purchase_token", new DictionarySchema.Getter<Purchase>() {
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getPurchaseToken();
+				}
+			})
+			.add("quantity", new DictionarySchema.Getter<Purchase>() {
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getQuantity();
+				}
+			})
+			.add("signature", new DictionarySchema.Getter<Purchase>() {
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getSignature();
+				}
+			})
+			// PBL V4 replaced getSku with getSkus to support multi-sku purchases,
+			// use the first entry for "sku" and generate an array for "skus"
+			.add("sku", new DictionarySchema.Getter<Purchase>() {
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getProducts().get(0);
+				}
+			})
+			.add("skus", new DictionarySchema.Getter<Purchase>() {
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getProducts().toArray(new String[0]);
+				}
+			})
+			.add("is_acknowledged", new DictionarySchema.Getter<Purchase>() {
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.isAcknowledged();
+				}
+			})
+			.add("is_auto_renewing", new DictionarySchema.Getter<Purchase>() {
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.isAutoRenewing();
+				}
+			})
+			.build();
+
+	private static final DictionarySchema<SkuDetails> LEGACY_SKU_DETAILS_SCHEMA = DictionarySchema.<SkuDetails>newBuilder()
+			.add("sku", new DictionarySchema.Getter<SkuDetails>() {
+				@Override
+				public Object get(SkuDetails details) {
+					return details.getSku();
+				}
+			})
+			.add("title", new DictionarySchema.Getter<SkuDetails>() {
+				@Override
+				public Object get(SkuDetails details) {
+					return details.getTitle();
+				}
+			})
+			.add("description", new DictionarySchema.Getter<SkuDetails>() {
+				@Override
+				public Object get(SkuDetails details) {
+					return details.getDescription();
+				}
+			})
+			.add("price", new DictionarySchema.Getter<SkuDetails>() {
+				@Override
+				public Object get(SkuDetails details) {
+					return details.getPrice();
+				}
+			})
+			.add("price_currency_code", new DictionarySchema.Getter<SkuDetails>() {
+				@Override
+				public Object get(SkuDetails details) {
+					return details.getPriceCurrencyCode();
+				}
+			})
+			.add("price_amount_micros", new DictionarySchema.Getter<SkuDetails>() {
+				@Override
+				public Object get(SkuDetails details) {
+					return details.getPriceAmountMicros();
+				}
+			})
+			.add("free_trial_period", new DictionarySchema.Getter<SkuDetails>() {
+				@Override
+				public Object get(SkuDetails details) {
+					return details.getFreeTrialPeriod();
+				}
+			})
+			.add("icon_url", new DictionarySchema.Getter<SkuDetails>() {
+				@Override
+				public Object get(SkuDetails details) {
+					return details.getIconUrl();
+				}
+			})
+			.add("introductory_price", new DictionarySchema.Getter<SkuDetails>() {
+				@Override
+				public Object get(SkuDetails details) {
+					return details.getIntroductoryPrice();
+				}
+			})
+			.add("introductory_price_amount_micros", new DictionarySchema.Getter<SkuDetails>() {
+				@Override
+				public Object get(SkuDetails details) {
+					return details.getIntroductoryPriceAmountMicros();
+				}
+			})
+			.add("introductory_price_cycles", new DictionarySchema.Getter<SkuDetails>() {
+				@Override
+				public Object get(SkuDetails details) {
+					return details.getIntroductoryPriceCycles();
+				}
+			})
+			.add("introductory_price_period", new DictionarySchema.Getter<SkuDetails>() {
+				@Override
+				public Object get(SkuDetails details) {
+					return details.getIntroductoryPricePeriod();
+				}
+			})
+			.add("original_price", new DictionarySchema.Getter<SkuDetails>() {
+				@Override
+				public Object get(SkuDetails details) {
+					return details.getOriginalPrice();
+				}
+			})
+			.add("original_price_amount_micros", new DictionarySchema.Getter<SkuDetails>() {
+				@Override
+				public Object get(SkuDetails details) {
+					return details.getOriginalPriceAmountMicros();
+				}
+			})
+			.add("subscription_period", new DictionarySchema.Getter<SkuDetails>() {
+				@Override
+				public Object get(SkuDetails details) {
+					return details.getSubscriptionPeriod();
+				}
+			})
+			.add("type", new DictionarySchema.Getter<SkuDetails>() {
+				@Override
+				public Object get(SkuDetails details) {
+					return details.getType();
+				}
+			})
+			.build();
+
+	// ProductDetails in the SkuDetails layout. The one-time offer fills the price keys;
+	// keys without a ProductDetails equivalent stay null.
+	private static final DictionarySchema<ProductDetails> LEGACY_PRODUCT_DETAILS_SCHEMA = DictionarySchema.<ProductDetails>newBuilder()
+			.add("sku", new DictionarySchema.Getter<ProductDetails>() {
+				@Override
+				public Object get(ProductDetails details) {
+					return details.getProductId();
+				}
+			})
+			.add("title", new DictionarySchema.Getter<ProductDetails>() {
+				@Override
+				public Object get(ProductDetails details) {
+					return details.getTitle();
+				}
+			})
+			.add("description", new DictionarySchema.Getter<ProductDetails>() {
+				@Override
+				public Object get(ProductDetails details) {
+					return details.getDescription();
+				}
+			})
+			.add("price", new DictionarySchema.Getter<ProductDetails>() {
+				@Override
+				public Object get(ProductDetails details) {
+					ProductDetails.OneTimePurchaseOfferDetails offer = details.getOneTimePurchaseOfferDetails();
+					return offer == null ? null : offer.getFormattedPrice();
+				}
+			})
+			.add("price_currency_code", new DictionarySchema.Getter<ProductDetails>() {
+				@Override
+				public Object get(ProductDetails details) {
+					ProductDetails.OneTimePurchaseOfferDetails offer = details.getOneTimePurchaseOfferDetails();
+					return offer == null ? null : offer.getPriceCurrencyCode();
+				}
+			})
+			.add("price_amount_micros", new DictionarySchema.Getter<ProductDetails>() {
+				@Override
+				public Object get(ProductDetails details) {
+					ProductDetails.OneTimePurchaseOfferDetails offer = details.getOneTimePurchaseOfferDetails();
+					return offer == null ? null : offer.getPriceAmountMicros();
+				}
+			})
+			.addNull("free_trial_period")
+			.addNull("icon_url")
+			.addNull("introductory_price")
+			.addNull("introductory_price_amount_micros")
+			.addNull("introductory_price_cycles")
+			.addNull("introductory_price_period")
+			.addNull("original_price")
+			.addNull("original_price_amount_micros")
+			.addNull("subscription_period")
+			.add("type", new DictionarySchema.Getter<ProductDetails>() {
+				@Override
+				public Object get(ProductDetails details) {
+					return details.getProductType();
+				}
+			})
+			.build();
+
+	// Current layouts.
+
+	private static final DictionarySchema<ProductDetails> PRODUCT_DETAILS_SCHEMA = DictionarySchema.<ProductDetails>newBuilder()
+			.add("description", new DictionarySchema.Getter<ProductDetails>() { // String
+				@Override
+				public Object get(ProductDetails productDetails) {
+					return productDetails.getDescription();
+				}
+			})
+			.add("name", new DictionarySchema.Getter<ProductDetails>() { // String
+				@Override
+				public Object get(ProductDetails productDetails) {
+					return productDetails.getName();
+				}
+			})
+			.add("one_time_purchase_offer_details", new DictionarySchema.Getter<ProductDetails>() { // Dictionary
+				@Override
+				public Object get(ProductDetails productDetails) {
+					return convertFromOneTimePurchaseOfferDetails(productDetails.getOneTimePurchaseOfferDetails());
+				}
+			})
+			.add("product_id", new DictionarySchema.Getter<ProductDetails>() { // String
+				@Override
+				public Object get(ProductDetails productDetails) {
+					return productDetails.getProductId();
+				}
+			})
+			.add("product_type", new DictionarySchema.Getter<ProductDetails>() { // String
+				@Override
+				public Object get(ProductDetails productDetails) {
+					return productDetails.getProductType();
+				}
+			})
+			.add("subscription_offer_details", new DictionarySchema.Getter<ProductDetails>() { // Godot Array of Dictionaries
+				@Override
+				public Object get(ProductDetails productDetails) {
+					return convertFromSubscriptionOfferDetailsArr(productDetails.getSubscriptionOfferDetails());
+				}
+			})
+			.add("title", new DictionarySchema.Getter<ProductDetails>() { // String
+				@Override
+				public Object get(ProductDetails productDetails) {
+					return productDetails.getTitle();
+				}
+			})
+			.build();
+
+	// Developer docs says it's possible for this to be null, which converts to an empty Dictionary.
+	private static final DictionarySchema<ProductDetails.OneTimePurchaseOfferDetails> ONE_TIME_PURCHASE_OFFER_DETAILS_SCHEMA = DictionarySchema.<ProductDetails.OneTimePurchaseOfferDetails>newBuilder()
+			.add("formatted_price", new DictionarySchema.Getter<ProductDetails.OneTimePurchaseOfferDetails>() { // String
+				@Override
+				public Object get(ProductDetails.OneTimePurchaseOfferDetails offer) {
+					return offer.getFormattedPrice();
+				}
+			})
+			.add("price_amount_micros", new DictionarySchema.Getter<ProductDetails.OneTimePurchaseOfferDetails>() { // long
+				@Override
+				public Object get(ProductDetails.OneTimePurchaseOfferDetails offer) {
+					return offer.getPriceAmountMicros();
+				}
+			})
+			.add("price_currency_code", new DictionarySchema.Getter<ProductDetails.OneTimePurchaseOfferDetails>() { // String
+				@Override
+				public Object get(ProductDetails.OneTimePurchaseOfferDetails offer) {
+					return offer.getPriceCurrencyCode();
+				}
+			})
+			.build();
+
+	private static final DictionarySchema<ProductDetails.SubscriptionOfferDetails> SUBSCRIPTION_OFFER_DETAILS_SCHEMA = DictionarySchema.<ProductDetails.SubscriptionOfferDetails>newBuilder()
+			.add("base_plan_id", new DictionarySchema.Getter<ProductDetails.SubscriptionOfferDetails>() { // String
+				@Override
+				public Object get(ProductDetails.SubscriptionOfferDetails offer) {
+					return offer.getBasePlanId();
+				}
+			})
+			.add("installment_plan_details", new DictionarySchema.Getter<ProductDetails.SubscriptionOfferDetails>() { // Dictionary
+				@Override
+				public Object get(ProductDetails.SubscriptionOfferDetails offer) {
+					return convertFromInstallmentPlanDetails(offer.getInstallmentPlanDetails());
+				}
+			})
+			.add("offer_id", new DictionarySchema.Getter<ProductDetails.SubscriptionOfferDetails>() { // String
+				@Override
+				public Object get(ProductDetails.SubscriptionOfferDetails offer) {
+					return offer.getOfferId();
+				}
+			})
+			.add("offer_tags", new DictionarySchema.Getter<ProductDetails.SubscriptionOfferDetails>() { // String[]
+				@Override
+				public Object get(ProductDetails.SubscriptionOfferDetails offer) {
+					return offer.getOfferTags().toArray();
+				}
+			})
+			.add("offer_token", new DictionarySchema.Getter<ProductDetails.SubscriptionOfferDetails>() { // String
+				@Override
+				public Object get(ProductDetails.SubscriptionOfferDetails offer) {
+					return offer.getOfferToken();
+				}
+			})
+			.add("pricing_phases", new DictionarySchema.Getter<ProductDetails.SubscriptionOfferDetails>() { // Dictionary
+				@Override
+				public Object get(ProductDetails.SubscriptionOfferDetails offer) {
+					return convertFromPricingPhases(offer.getPricingPhases());
+				}
+			})
+			.build();
+
+	private static final DictionarySchema<ProductDetails.InstallmentPlanDetails> INSTALLMENT_PLAN_DETAILS_SCHEMA = DictionarySchema.<ProductDetails.InstallmentPlanDetails>newBuilder()
+			.add("installment_plan_commitment_payments_count", new DictionarySchema.Getter<ProductDetails.InstallmentPlanDetails>() { // int
+				@Override
+				public Object get(ProductDetails.InstallmentPlanDetails details) {
+					return details.getInstallmentPlanCommitmentPaymentsCount();
+				}
+			})
+			.add("subsequent_installment_plan_commitment_payments_count", new DictionarySchema.Getter<ProductDetails.InstallmentPlanDetails>() { // int
+				@Override
+				public Object get(ProductDetails.InstallmentPlanDetails details) {
+					return details.getSubsequentInstallmentPlanCommitmentPaymentsCount();
+				}
+			})
+			.build();
+
+	private static final DictionarySchema<ProductDetails.PricingPhases> PRICING_PHASES_SCHEMA = DictionarySchema.<ProductDetails.PricingPhases>newBuilder()
+			.add("pricing_phase_list", new DictionarySchema.Getter<ProductDetails.PricingPhases>() { // Array of Dictionaries
+				@Override
+				public Object get(ProductDetails.PricingPhases pricingPhases) {
+					return convertFromPricingPhaseArr(pricingPhases.getPricingPhaseList());
+				}
+			})
+			.build();
+
+	private static final DictionarySchema<ProductDetails.PricingPhase> PRICING_PHASE_SCHEMA = DictionarySchema.<ProductDetails.PricingPhase>newBuilder()
+			.add("billing_cycle_count", new DictionarySchema.Getter<ProductDetails.PricingPhase>() { // int
+				@Override
+				public Object get(ProductDetails.PricingPhase pricingPhase) {
+					return pricingPhase.getBillingCycleCount();
+				}
+			})
+			.add("billing_period", new DictionarySchema.Getter<ProductDetails.PricingPhase>() { // String
+				@Override
+				public Object get(ProductDetails.PricingPhase pricingPhase) {
+					return pricingPhase.getBillingPeriod();
+				}
+			})
+			.add("formatted_price", new DictionarySchema.Getter<ProductDetails.PricingPhase>() { // String
+				@Override
+				public Object get(ProductDetails.PricingPhase pricingPhase) {
+					return pricingPhase.getFormattedPrice();
+				}
+			})
+			.add("price_amount_micros", new DictionarySchema.Getter<ProductDetails.PricingPhase>() { // long
+				@Override
+				public Object get(ProductDetails.PricingPhase pricingPhase) {
+					return pricingPhase.getPriceAmountMicros();
+				}
+			})
+			.add("price_currency_code", new DictionarySchema.Getter<ProductDetails.PricingPhase>() { // String
+				@Override
+				public Object get(ProductDetails.PricingPhase pricingPhase) {
+					return pricingPhase.getPriceCurrencyCode();
+				}
+			})
+			.add("recurrence_mode", new DictionarySchema.Getter<ProductDetails.PricingPhase>() { // int
+				@Override
+				public Object get(ProductDetails.PricingPhase pricingPhase) {
+					return pricingPhase.getRecurrenceMode();
+				}
+			})
+			.build();
+
+	private static final DictionarySchema<Purchase> PURCHASE_SCHEMA = DictionarySchema.<Purchase>newBuilder()
+			.add("account_identifiers", new DictionarySchema.Getter<Purchase>() { // Dictionary
+				@Override
+				public Object get(Purchase purchase) {
+					return convertFromAccountIdentifiers(purchase.getAccountIdentifiers());
+				}
+			})
+			.add("developer_payload", new DictionarySchema.Getter<Purchase>() { // String
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getDeveloperPayload();
+				}
+			})
+			.add("order_id", new DictionarySchema.Getter<Purchase>() { // String
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getOrderId();
+				}
+			})
+			.add("original_json", new DictionarySchema.Getter<Purchase>() { // String
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getOriginalJson();
+				}
+			})
+			.add("package_name", new DictionarySchema.Getter<Purchase>() { // String
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getPackageName();
+				}
+			})
+			.add("pending_purchase_update", new DictionarySchema.Getter<Purchase>() { // Dictionary
+				@Override
+				public Object get(Purchase purchase) {
+					return convertFromPendingPurchaseUpdate(purchase.getPendingPurchaseUpdate());
+				}
+			})
+			.add("products", new DictionarySchema.Getter<Purchase>() { // String[]
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getProducts().toArray();
+				}
+			})
+			.add("purchase_state", new DictionarySchema.Getter<Purchase>() { // int
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getPurchaseState();
+				}
+			})
+			.add("purchase_time", new DictionarySchema.Getter<Purchase>() { // long
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getPurchaseTime();
+				}
+			})
+			.add("purchase_token", new DictionarySchema.Getter<Purchase>() { // String
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getPurchaseToken();
+				}
+			})
+			.add("quantity", new DictionarySchema.Getter<Purchase>() { // int
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getQuantity();
+				}
+			})
+			.add("signature", new DictionarySchema.Getter<Purchase>() { // String
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.getSignature();
+				}
+			})
+			.add("is_acknowledged", new DictionarySchema.Getter<Purchase>() { // boolean
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.isAcknowledged();
+				}
+			})
+			.add("is_auto_renewing", new DictionarySchema.Getter<Purchase>() { // boolean
+				@Override
+				public Object get(Purchase purchase) {
+					return purchase.isAutoRenewing();
+				}
+			})
+			.build();
+
+	private static final DictionarySchema<AccountIdentifiers> ACCOUNT_IDENTIFIERS_SCHEMA = DictionarySchema.<AccountIdentifiers>newBuilder()
+			.add("obfuscated_account_id", new DictionarySchema.Getter<AccountIdentifiers>() { // String
+				@Override
+				public Object get(AccountIdentifiers accountIdentifiers) {
+					return accountIdentifiers.getObfuscatedAccountId();
+				}
+			})
+			.add("obfuscated_profile_id", new DictionarySchema.Getter<AccountIdentifiers>() { // String
+				@Override
+				public Object get(AccountIdentifiers accountIdentifiers) {
+					return accountIdentifiers.getObfuscatedProfileId();
+				}
+			})
+			.build();
+
+	private static final DictionarySchema<Purchase.PendingPurchaseUpdate> PENDING_PURCHASE_UPDATE_SCHEMA = DictionarySchema.<Purchase.PendingPurchaseUpdate>newBuilder()
+			.add("products", new DictionarySchema.Getter<Purchase.PendingPurchaseUpdate>() { // String[]
+				@Override
+				public Object get(Purchase.PendingPurchaseUpdate pendingPurchaseUpdate) {
+					return pendingPurchaseUpdate.getProducts().toArray();
+				}
+			})
+			.add("purchase_token", new DictionarySchema.Getter<Purchase.PendingPurchaseUpdate>() { // String
+				@Override
+				public Object get(Purchase.PendingPurchaseUpdate pendingPurchaseUpdate) {
+					return pendingPurchaseUpdate.getPurchaseToken();
+				}
+			})
+			.build();
+
 	public static Dictionary convertPurchaseToDictionary(Purchase purchase) {
-		Dictionary dictionary = new Dictionary();
-		dictionary.put("original_json", purchase.getOriginalJson());
-		dictionary.put("order_id", purchase.getOrderId());
-		dictionary.put("package_name", purchase.getPackageName());
-		dictionary.put("purchase_state", purchase.getPurchaseState());
-		dictionary.put("purchase_time", purchase.getPurchaseTime());
-		dictionary.put("purchase_token", purchase.getPurchaseToken());
-		dictionary.put("quantity", purchase.getQuantity());
-		dictionary.put("signature", purchase.getSignature());
-		// PBL V4 replaced getSku with getSkus to support multi-sku purchases,
-		// use the first entry for "sku" and generate an array for "skus"
-		ArrayList<String> skus = purchase.getSkus();
-		dictionary.put("sku", skus.get(0));
-		String[] skusArray = skus.toArray(new String[0]);
-		dictionary.put("skus", skusArray);
-		dictionary.put("is_acknowledged", purchase.isAcknowledged());
-		dictionary.put("is_auto_renewing", purchase.isAutoRenewing());
-		return dictionary;
+		return LEGACY_PURCHASE_SCHEMA.convert(purchase);
 	}
 
 	public static Dictionary convertSkuDetailsToDictionary(SkuDetails details) {
-		Dictionary dictionary = new Dictionary();
-		dictionary.put("sku", details.getSku());
-		dictionary.put("title", details.getTitle());
-		dictionary.put("description", details.getDescription());
-		dictionary.put("price", details.getPrice());
-		dictionary.put("price_currency_code", details.getPriceCurrencyCode());
-		dictionary.put("price_amount_micros", details.getPriceAmountMicros());
-		dictionary.put("free_trial_period", details.getFreeTrialPeriod());
-		dictionary.put("icon_url", details.getIconUrl());
-		dictionary.put("introductory_price", details.getIntroductoryPrice());
-		dictionary.put("introductory_price_amount_micros", details.getIntroductoryPriceAmountMicros());
-		dictionary.put("introductory_price_cycles", details.getIntroductoryPriceCycles());
-		dictionary.put("introductory_price_period", details.getIntroductoryPricePeriod());
-		dictionary.put("original_price", details.getOriginalPrice());
-		dictionary.put("original_price_amount_micros", details.getOriginalPriceAmountMicros());
-		dictionary.put("subscription_period", details.getSubscriptionPeriod());
-		dictionary.put("type", details.getType());
-		return dictionary;
+		return LEGACY_SKU_DETAILS_SCHEMA.convert(details);
 	}
 
 	public static Dictionary convertProductDetailsToDictionary(ProductDetails details) {
-		Dictionary dictionary = new Dictionary();
-		dictionary.put("sku", details.getProductId());
-		dictionary.put("title", details.getTitle());
-		dictionary.put("description", details.getDescription());
-		dictionary.put("price", null);
-		dictionary.put("price_currency_code", null);
-		dictionary.put("price_amount_micros", null);
-		dictionary.put("free_trial_period", null);
-		dictionary.put("icon_url", null);
-		dictionary.put("introductory_price", null);
-		dictionary.put("introductory_price_amount_micros", null);
-		dictionary.put("introductory_price_cycles", null);
-		dictionary.put("introductory_price_period", null);
-		dictionary.put("original_price", null);
-		dictionary.put("original_price_amount_micros", null);
-		dictionary.put("subscription_period", null);
-		dictionary.put("type", null);
-		return dictionary;
+		return LEGACY_PRODUCT_DETAILS_SCHEMA.convert(details);
 	}
 
 
 	public static Object[] convertPurchaseListToDictionaryObjectArray(List<Purchase> purchases) {
-		Object[] purchaseDictionaries = new Object[purchases.size()];
-
-		for (int i = 0; i < purchases.size(); i++) {
-			purchaseDictionaries[i] = GooglePlayBillingUtils.convertPurchaseToDictionary(purchases.get(i));
-		}
-
-		return purchaseDictionaries;
+		return LEGACY_PURCHASE_SCHEMA.convertArr(purchases);
 	}
 
 	public static Object[] convertSkuDetailsListToDictionaryObjectArray(List<SkuDetails> skuDetails) {
-		Object[] skuDetailsDictionaries = new Object[skuDetails.size()];
-
-		for (int i = 0; i < skuDetails.size(); i++) {
-			skuDetailsDictionaries[i] = GooglePlayBillingUtils.convertSkuDetailsToDictionary(skuDetails.get(i));
-		}
-
-		return skuDetailsDictionaries;
+		return LEGACY_SKU_DETAILS_SCHEMA.convertArr(skuDetails);
 	}
 
 	public static Object[] convertProductDetailsListToDictionaryObjectArray(List<ProductDetails> productDetails) {
-		Object[] skuDetailsDictionaries = new Object[productDetails.size()];
-
-		for (int i = 0; i < productDetails.size(); i++) {
-			skuDetailsDictionaries[i] = GooglePlayBillingUtils.convertProductDetailsToDictionary(productDetails.get(i));
-		}
-
-		return skuDetailsDictionaries;
+		return LEGACY_PRODUCT_DETAILS_SCHEMA.convertArr(productDetails);
 	}
 
-	public static void addProductDetailsByProductId(List<ProductDetails> allProductDetails, HashMap<String, ProductDetails> allProductDetailsByProductId) {
+	public static void addProductDetailsByProductId(List<ProductDetails> allProductDetails, ConcurrentStore<ProductDetails> allProductDetailsByProductId) {
 		if (allProductDetails == null) return;
 
 		for (int i = 0; i < allProductDetails.size(); i++) {
@@ -155,178 +610,82 @@ public class GooglePlayBillingUtils {
 		return dictionary;
 	}
 
-	public static Object[] convertFromProductDetailsArr(List<ProductDetails> allProductDetails) {
-		if (allProductDetails == null) {
-			return new Object[] {  };
-		}
-
-		Object[] allDictionaries = new Object[allProductDetails.size()];
+	public static Dictionary convertFromBillingResult(BillingResult billingResult, int requestId) {
+		Dictionary dictionary = convertFromBillingResult(billingResult);
+		dictionary.put("request_id", requestId); // int
+		return dictionary;
+	}
 
-		for (int i = 0; i < allDictionaries.length; i++) {
-			allDictionaries[i] = convertFromProductDetails(allProductDetails.get(i));
-		}
+	public static Object[] convertFromProductDetailsArr(List<ProductDetails> allProductDetails) {
+		return PRODUCT_DETAILS_SCHEMA.convertArr(allProductDetails);
+	}
 
-		return allDictionaries;
+	public static Object[] convertFromProductDetailsArr(List<ProductDetails> allProductDetails, Set<String> fields) {
+		return PRODUCT_DETAILS_SCHEMA.convertArr(allProductDetails, fields);
 	}
 
 	public static Dictionary convertFromProductDetails(ProductDetails productDetails) {
-		Dictionary dictionary = new Dictionary();
-
-		dictionary.put("description", productDetails.getDescription()); // String
-		dictionary.put("name", productDetails.getName()); // String
-		dictionary.put("one_time_purchase_offer_details", convertFromOneTimePurchaseOfferDetails(productDetails.getOneTimePurchaseOfferDetails())); // Dictionary
-		dictionary.put("product_id", productDetails.getProductId()); // String
-		dictionary.put("product_type", productDetails.getProductType()); // String
-		dictionary.put("subscription_offer_details", convertFromSubscriptionOfferDetailsArr(productDetails.getSubscriptionOfferDetails())); // Godot Array of Dictionaries
-		dictionary.put("title", productDetails.getTitle()); // String
+		return PRODUCT_DETAILS_SCHEMA.convert(productDetails);
+	}
 
-		return dictionary;
+	// Only the keys in fields are converted, or every key when fields is null.
+	public static Dictionary convertFromProductDetails(ProductDetails productDetails, Set<String> fields) {
+		return PRODUCT_DETAILS_SCHEMA.convert(productDetails, fields);
 	}
 
 	public static Dictionary convertFromOneTimePurchaseOfferDetails(ProductDetails.OneTimePurchaseOfferDetails oneTimePurchaseOfferDetails) {
-		Dictionary dictionary = new Dictionary();
-
-		// Developer docs says it's possible for this to be null.
-		if (oneTimePurchaseOfferDetails == null) {
-			return dictionary;
-		}
-
-		dictionary.put("formatted_price", oneTimePurchaseOfferDetails.getFormattedPrice()); // String
-		dictionary.put("price_amount_micros", oneTimePurchaseOfferDetails.getPriceAmountMicros()); // long
-		dictionary.put("price_currency_code", oneTimePurchaseOfferDetails.getPriceCurrencyCode()); // String
-		return dictionary;
+		return ONE_TIME_PURCHASE_OFFER_DETAILS_SCHEMA.convert(oneTimePurchaseOfferDetails);
 	}
 
 	public static Object[] convertFromSubscriptionOfferDetailsArr(List<ProductDetails.SubscriptionOfferDetails> subscriptionOfferDetails) {
 		// Developer docs says it's possible for this to be null.
-		if (subscriptionOfferDetails == null) {
-			return new Object[] {  };
-		}
-
-		Object[] allDictionaries = new Object[subscriptionOfferDetails.size()];
-
-		for (int i = 0; i < allDictionaries.length; i++) {
-			allDictionaries[i] = convertFromSubscriptionOfferDetails(subscriptionOfferDetails.get(i));
-		}
-
-		return allDictionaries;
+		return SUBSCRIPTION_OFFER_DETAILS_SCHEMA.convertArr(subscriptionOfferDetails);
 	}
 
 	public static Dictionary convertFromSubscriptionOfferDetails(ProductDetails.SubscriptionOfferDetails subscriptionOfferDetails) {
-		Dictionary dictionary = new Dictionary();
-		dictionary.put("base_plan_id", subscriptionOfferDetails.getBasePlanId()); // String
-		dictionary.put("installment_plan_details", convertFromInstallmentPlanDetails(subscriptionOfferDetails.getInstallmentPlanDetails())); // Dictionary
-		dictionary.put("offer_id", subscriptionOfferDetails.getOfferId()); // String
-		dictionary.put("offer_tags", subscriptionOfferDetails.getOfferTags().toArray()); // String[]
-		dictionary.put("offer_token", subscriptionOfferDetails.getOfferToken()); // String
-		dictionary.put("pricing_phases", convertFromPricingPhases(subscriptionOfferDetails.getPricingPhases())); // Dictionary
-		return dictionary;
+		return SUBSCRIPTION_OFFER_DETAILS_SCHEMA.convert(subscriptionOfferDetails);
 	}
 
 	public static Dictionary convertFromInstallmentPlanDetails(ProductDetails.InstallmentPlanDetails installmentPlanDetails) {
-		Dictionary dictionary = new Dictionary();
-
-		if (installmentPlanDetails == null) {
-			return dictionary;
-		}
-
-		dictionary.put("installment_plan_commitment_payments_count", installmentPlanDetails.getInstallmentPlanCommitmentPaymentsCount()); // int
-		dictionary.put("subsequent_installment_plan_commitment_payments_count", installmentPlanDetails.getSubsequentInstallmentPlanCommitmentPaymentsCount()); // int
-		return dictionary;
+		return INSTALLMENT_PLAN_DETAILS_SCHEMA.convert(installmentPlanDetails);
 	}
 
 	public static Dictionary convertFromPricingPhases(ProductDetails.PricingPhases pricingPhases) {
-		Dictionary dictionary = new Dictionary();
-		dictionary.put("pricing_phase_list", convertFromPricingPhaseArr(pricingPhases.getPricingPhaseList())); // Array of Dictionaries
-		return dictionary;
+		return PRICING_PHASES_SCHEMA.convert(pricingPhases);
 	}
 	public static Object[] convertFromPricingPhaseArr(List<ProductDetails.PricingPhase> allPricingPhases) {
-		if (allPricingPhases == null) {
-			return new Object[] {  };
-		}
-
-		Object[] allDictionaries = new Object[allPricingPhases.size()];
-
-		for (int i = 0; i < allDictionaries.length; i++) {
-			allDictionaries[i] = convertFromPricingPhase(allPricingPhases.get(i));
-		}
-
-		return allDictionaries;
+		return PRICING_PHASE_SCHEMA.convertArr(allPricingPhases);
 	}
 	public static Dictionary convertFromPricingPhase(ProductDetails.PricingPhase pricingPhase) {
-		Dictionary dictionary = new Dictionary();
-		dictionary.put("billing_cycle_count", pricingPhase.getBillingCycleCount()); // int
-		dictionary.put("billing_period", pricingPhase.getBillingPeriod()); // String
-		dictionary.put("formatted_price", pricingPhase.getFormattedPrice()); // String
-		dictionary.put("price_amount_micros", pricingPhase.getPriceAmountMicros()); // long
-		dictionary.put("price_currency_code", pricingPhase.getPriceCurrencyCode()); // String
-		dictionary.put("recurrence_mode", pricingPhase.getRecurrenceMode()); // int
-		return dictionary;
+		return PRICING_PHASE_SCHEMA.convert(pricingPhase);
 	}
 
-	public static void addPurchasesByPurchaseToken(List<Purchase> allPurchases, HashMap<String, Purchase> allPurchasesByPurchaseToken) {
+	public static void addPurchasesByPurchaseToken(List<Purchase> allPurchases, PurchaseIndex allPurchasesByPurchaseToken) {
 		if (allPurchases == null) return;
 
 		for (int i = 0; i < allPurchases.size(); i++) {
-			Purchase purchase = allPurchases.get(i);
-			String purchaseToken = purchase.getPurchaseToken();
-
-			allPurchasesByPurchaseToken.put(purchaseToken, purchase);
+			allPurchasesByPurchaseToken.put(allPurchases.get(i));
 		}
 	}
 	public static Object[] convertFromPurchaseArr(List<Purchase> allPurchases) {
-		if (allPurchases == null) {
-			return new Object[] {  };
-		}
-
-		Object[] allDictionaries = new Object[allPurchases.size()];
-
-		for (int i = 0; i < allDictionaries.length; i++) {
-			allDictionaries[i] = convertFromPurchase(allPurchases.get(i));
-		}
-
-		return allDictionaries;
+		return PURCHASE_SCHEMA.convertArr(allPurchases);
+	}
+	public static Object[] convertFromPurchaseArr(List<Purchase> allPurchases, Set<String> fields) {
+		return PURCHASE_SCHEMA.convertArr(allPurchases, fields);
 	}
 	public static Dictionary convertFromPurchase(Purchase purchase) {
-		Dictionary dictionary = new Dictionary();
-		dictionary.put("account_identifiers", convertFromAccountIdentifiers(purchase.getAccountIdentifiers())); // Dictionary
-		dictionary.put("developer_payload", purchase.getDeveloperPayload()); // String
-		dictionary.put("order_id", purchase.getOrderId()); // String
-		dictionary.put("original_json", purchase.getOriginalJson()); // String
-		dictionary.put("package_name", purchase.getPackageName()); // String
-		dictionary.put("pending_purchase_update", convertFromPendingPurchaseUpdate(purchase.getPendingPurchaseUpdate())); // Dictionary
-		dictionary.put("products", purchase.getProducts().toArray()); // String[]
-		dictionary.put("purchase_state", purchase.getPurchaseState()); // int
-		dictionary.put("purchase_time", purchase.getPurchaseTime()); // long
-		dictionary.put("purchase_token", purchase.getPurchaseToken()); // String
-		dictionary.put("quantity", purchase.getQuantity()); // int
-		dictionary.put("signature", purchase.getSignature()); // String
-		dictionary.put("is_acknowledged", purchase.isAcknowledged()); // boolean
-		dictionary.put("is_auto_renewing", purchase.isAutoRenewing()); // boolean
-		return dictionary;
+		return PURCHASE_SCHEMA.convert(purchase);
+	}
+	// Only the keys in fields are converted, or every key when fields is null.
+	public static Dictionary convertFromPurchase(Purchase purchase, Set<String> fields) {
+		return PURCHASE_SCHEMA.convert(purchase, fields);
 	}
 
 	public static Dictionary convertFromAccountIdentifiers(AccountIdentifiers accountIdentifiers) {
-		Dictionary dictionary = new Dictionary();
-
-		if (accountIdentifiers == null) {
-			return dictionary;
-		}
-
-		dictionary.put("obfuscated_account_id", accountIdentifiers.getObfuscatedAccountId()); // String
-		dictionary.put("obfuscated_profile_id", accountIdentifiers.getObfuscatedProfileId()); // String
-		return dictionary;
+		return ACCOUNT_IDENTIFIERS_SCHEMA.convert(accountIdentifiers);
 	}
 	public static Dictionary convertFromPendingPurchaseUpdate(Purchase.PendingPurchaseUpdate pendingPurchaseUpdate) {
-		Dictionary dictionary = new Dictionary();
-
-		if (pendingPurchaseUpdate == null) {
-			return dictionary;
-		}
-
-		dictionary.put("products", pendingPurchaseUpdate.getProducts().toArray()); // String[]
-		dictionary.put("purchase_token", pendingPurchaseUpdate.getPurchaseToken()); // String
-		return dictionary;
+		return PENDING_PURCHASE_UPDATE_SCHEMA.convert(pendingPurchaseUpdate);
 	}
 
 }
@@ -0,0 +1,115 @@
+/*************************************************************************/
+/*  LatencyHistogram.java                                                */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import org.godotengine.godot.Dictionary;
+
+/**
+ * Fixed-size, log-linear latency histogram in the spirit of HdrHistogram: every
+ * power of two is split into SUB_BUCKETS linear buckets, giving a relative error
+ * of at most 1 / SUB_BUCKETS from one microsecond up to several hours.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAGNITUDES = 32;
+
+	private final long[] counts = new long[MAGNITUDES * SUB_BUCKETS];
+	private long totalCount;
+	private long totalMicros;
+	private long maxMicros;
+
+	public synchronized void record(long micros) {
+		micros = Math.max(0, micros);
+		counts[bucketIndex(micros)]++;
+		totalCount++;
+		totalMicros += micros;
+		maxMicros = Math.max(maxMicros, micros);
+	}
+
+	public synchronized long getCount() {
+		return totalCount;
+	}
+
+	public synchronized void reset() {
+		java.util.Arrays.fill(counts, 0);
+		totalCount = 0;
+		totalMicros = 0;
+		maxMicros = 0;
+	}
+
+	// Returns the upper bound of the bucket holding the given percentile (0-100), in microseconds.
+	public synchronized long getPercentileMicros(double percentile) {
+		if (totalCount == 0) return 0;
+
+		long target = Math.max(1, (long)Math.ceil(totalCount * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= target) {
+				return Math.min(maxMicros, bucketUpperBound(i));
+			}
+		}
+		return maxMicros;
+	}
+
+	public synchronized Dictionary toDictionary() {
+		Dictionary dictionary = new Dictionary();
+		dictionary.put("count", totalCount); // long
+		dictionary.put("mean_ms", totalCount == 0 ? 0.0 : totalMicros / 1000.0 / totalCount); // double
+		dictionary.put("p50_ms", getPercentileMicros(50) / 1000.0); // double
+		dictionary.put("p90_ms", getPercentileMicros(90) / 1000.0); // double
+		dictionary.put("p99_ms", getPercentileMicros(99) / 1000.0); // double
+		dictionary.put("max_ms", maxMicros / 1000.0); // double
+		return dictionary;
+	}
+
+	private static int bucketIndex(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int)micros;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS + 1;
+		if (magnitude >= MAGNITUDES) {
+			return MAGNITUDES * SUB_BUCKETS - 1;
+		}
+		int subBucket = (int)(micros >>> (magnitude - 1)) & (SUB_BUCKETS - 1);
+		return magnitude * SUB_BUCKETS + subBucket;
+	}
+
+	private static long bucketUpperBound(int index) {
+		int magnitude = index / SUB_BUCKETS;
+		int subBucket = index % SUB_BUCKETS;
+		if (magnitude == 0) {
+			return subBucket;
+		}
+		return ((long)(SUB_BUCKETS + subBucket + 1) << (magnitude - 1)) - 1;
+	}
+}
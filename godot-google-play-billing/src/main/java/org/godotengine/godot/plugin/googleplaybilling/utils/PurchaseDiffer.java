@@ -0,0 +1,155 @@
+/*************************************************************************/
+/*  PurchaseDiffer.java                                                  */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the last known state of every purchase and reports which purchases
+ * were added, changed (state, acknowledgement, auto-renewal or quantity) or
+ * removed since then.
+ */
+public class PurchaseDiffer {
+	public static class Diff {
+		public final List<Purchase> added = new ArrayList<>();
+		public final List<Purchase> changed = new ArrayList<>();
+		public final List<String> removedPurchaseTokens = new ArrayList<>();
+
+		public boolean isEmpty() {
+			return added.isEmpty() && changed.isEmpty() && removedPurchaseTokens.isEmpty();
+		}
+	}
+
+	private static class Snapshot {
+		String productType;
+		final int purchaseState;
+		final boolean acknowledged;
+		final boolean autoRenewing;
+		final int quantity;
+
+		Snapshot(String productType, Purchase purchase) {
+			this.productType = productType;
+			purchaseState = purchase.getPurchaseState();
+			acknowledged = purchase.isAcknowledged();
+			autoRenewing = purchase.isAutoRenewing();
+			quantity = purchase.getQuantity();
+		}
+
+		boolean matches(Purchase purchase) {
+			return purchaseState == purchase.getPurchaseState()
+					&& acknowledged == purchase.isAcknowledged()
+					&& autoRenewing == purchase.isAutoRenewing()
+					&& quantity == purchase.getQuantity();
+		}
+	}
+
+	private final HashMap<String, Snapshot> snapshotsByPurchaseToken = new HashMap<>();
+
+	// Purchases from purchases_updated: the product type is unknown and the list is not
+	// exhaustive, so nothing can be reported as removed.
+	public synchronized Diff diffUpdates(List<Purchase> purchases) {
+		Diff diff = new Diff();
+		apply(null, purchases, diff);
+		return diff;
+	}
+
+	// A complete query result for one product type: known purchases of that type that
+	// are missing from it have been consumed, refunded or have expired.
+	public synchronized Diff diffQuery(String productType, List<Purchase> purchases) {
+		Diff diff = new Diff();
+		Set<String> purchaseTokens = apply(productType, purchases, diff);
+		removeMissing(productType, purchaseTokens, diff);
+		return diff;
+	}
+
+	// Complete query results for every product type.
+	public synchronized Diff diffAll(Map<String, List<Purchase>> purchasesByProductType) {
+		Diff diff = new Diff();
+		Set<String> purchaseTokens = new HashSet<>();
+		for (Map.Entry<String, List<Purchase>> entry : purchasesByProductType.entrySet()) {
+			purchaseTokens.addAll(apply(entry.getKey(), entry.getValue(), diff));
+		}
+		removeMissing(null, purchaseTokens, diff);
+		return diff;
+	}
+
+	public synchronized void clear() {
+		snapshotsByPurchaseToken.clear();
+	}
+
+	private Set<String> apply(String productType, List<Purchase> purchases, Diff diff) {
+		Set<String> purchaseTokens = new HashSet<>();
+		if (purchases == null) return purchaseTokens;
+
+		for (Purchase purchase : purchases) {
+			String purchaseToken = purchase.getPurchaseToken();
+			purchaseTokens.add(purchaseToken);
+
+			Snapshot snapshot = snapshotsByPurchaseToken.get(purchaseToken);
+			if (snapshot == null) {
+				diff.added.add(purchase);
+			} else if (!snapshot.matches(purchase)) {
+				diff.changed.add(purchase);
+			} else {
+				if (productType != null) {
+					snapshot.productType = productType;
+				}
+				continue;
+			}
+
+			String knownProductType = productType != null ? productType : snapshot != null ? snapshot.productType : null;
+			snapshotsByPurchaseToken.put(purchaseToken, new Snapshot(knownProductType, purchase));
+		}
+
+		return purchaseTokens;
+	}
+
+	// With a null productType every purchase is considered, otherwise only those known to be of that type.
+	private void removeMissing(String productType, Set<String> purchaseTokens, Diff diff) {
+		Iterator<Map.Entry<String, Snapshot>> iterator = snapshotsByPurchaseToken.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Snapshot> entry = iterator.next();
+			if (purchaseTokens.contains(entry.getKey())) continue;
+			if (productType != null && !productType.equals(entry.getValue().productType)) continue;
+
+			iterator.remove();
+			diff.removedPurchaseTokens.add(entry.getKey());
+		}
+	}
+}
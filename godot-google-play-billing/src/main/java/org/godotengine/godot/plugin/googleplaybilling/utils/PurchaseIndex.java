@@ -0,0 +1,185 @@
+/*************************************************************************/
+/*  PurchaseIndex.java                                                   */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import org.godotengine.godot.Dictionary;
+
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Purchases by purchase token, bounded both in size (oldest entries are evicted
+ * first) and in age. Consumed purchases are removed explicitly, so memory stays
+ * flat no matter how many consumables are bought in a session.
+ *
+ * Lookups read a ConcurrentHashMap without locking. Writes keep a second,
+ * insertion-ordered map under the index's lock, which is also age order, so size
+ * eviction and the age sweep only ever look at the oldest entries.
+ */
+public class PurchaseIndex {
+	public static final int DEFAULT_MAX_ENTRIES = 256;
+	public static final long DEFAULT_MAX_AGE_MILLIS = 24 * 60 * 60 * 1000L;
+	private static final long SWEEP_INTERVAL_MILLIS = 60 * 1000L;
+
+	private static class IndexedPurchase {
+		final Purchase purchase;
+		final long insertedAt;
+
+		IndexedPurchase(Purchase purchase, long insertedAt) {
+			this.purchase = purchase;
+			this.insertedAt = insertedAt;
+		}
+	}
+
+	private final ConcurrentHashMap<String, IndexedPurchase> entriesByPurchaseToken = new ConcurrentHashMap<>();
+	// Oldest first. Only touched while holding the index's lock.
+	private final LinkedHashMap<String, IndexedPurchase> entriesByInsertion = new LinkedHashMap<>();
+
+	private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+	private volatile long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+	private long lastSweepAt;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	private final AtomicLong removalCount = new AtomicLong();
+
+	// A maxAgeMillis of 0 or less means entries never expire by age.
+	public synchronized void setLimits(int maxEntries, long maxAgeMillis) {
+		this.maxEntries = Math.max(1, maxEntries);
+		this.maxAgeMillis = maxAgeMillis > 0 ? maxAgeMillis : Long.MAX_VALUE;
+
+		sweep(now());
+		evictOverflow();
+	}
+
+	// Lock-free. Expired entries are reported as missing and left to the next sweep.
+	public Purchase get(String purchaseToken) {
+		IndexedPurchase entry = entriesByPurchaseToken.get(purchaseToken);
+		if (entry == null || isExpired(entry, now())) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		hitCount.incrementAndGet();
+		return entry.purchase;
+	}
+
+	public synchronized void put(Purchase purchase) {
+		long now = now();
+		String purchaseToken = purchase.getPurchaseToken();
+		IndexedPurchase entry = new IndexedPurchase(purchase, now);
+
+		// Re-inserting moves the purchase to the young end, keeping insertion order sorted by age.
+		entriesByInsertion.remove(purchaseToken);
+		entriesByInsertion.put(purchaseToken, entry);
+		entriesByPurchaseToken.put(purchaseToken, entry);
+		evictOverflow();
+
+		if (now - lastSweepAt >= SWEEP_INTERVAL_MILLIS) {
+			sweep(now);
+		}
+	}
+
+	public synchronized Purchase remove(String purchaseToken) {
+		IndexedPurchase entry = entriesByInsertion.remove(purchaseToken);
+		if (entry == null) {
+			return null;
+		}
+		entriesByPurchaseToken.remove(purchaseToken);
+		removalCount.incrementAndGet();
+		return entry.purchase;
+	}
+
+	public int size() {
+		return entriesByPurchaseToken.size();
+	}
+
+	public List<Purchase> snapshot() {
+		List<Purchase> purchases = new ArrayList<>(entriesByPurchaseToken.size());
+		for (IndexedPurchase entry : entriesByPurchaseToken.values()) {
+			purchases.add(entry.purchase);
+		}
+		return purchases;
+	}
+
+	// evictions counts entries dropped for size or age, removals the ones removed
+	// explicitly, e.g. once consumed.
+	public Dictionary getStats() {
+		Dictionary dictionary = new Dictionary();
+		dictionary.put("size", entriesByPurchaseToken.size()); // int
+		dictionary.put("max_entries", maxEntries); // int
+		dictionary.put("hits", hitCount.get()); // long
+		dictionary.put("misses", missCount.get()); // long
+		dictionary.put("evictions", evictionCount.get()); // long
+		dictionary.put("removals", removalCount.get()); // long
+		return dictionary;
+	}
+
+	private void evictOverflow() {
+		Iterator<Map.Entry<String, IndexedPurchase>> iterator = entriesByInsertion.entrySet().iterator();
+		while (entriesByInsertion.size() > maxEntries && iterator.hasNext()) {
+			evict(iterator, iterator.next().getKey());
+		}
+	}
+
+	private void sweep(long now) {
+		lastSweepAt = now;
+
+		Iterator<Map.Entry<String, IndexedPurchase>> iterator = entriesByInsertion.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, IndexedPurchase> entry = iterator.next();
+			if (!isExpired(entry.getValue(), now)) {
+				return;
+			}
+			evict(iterator, entry.getKey());
+		}
+	}
+
+	private void evict(Iterator<Map.Entry<String, IndexedPurchase>> iterator, String purchaseToken) {
+		iterator.remove();
+		entriesByPurchaseToken.remove(purchaseToken);
+		evictionCount.incrementAndGet();
+	}
+
+	private boolean isExpired(IndexedPurchase entry, long now) {
+		return now - entry.insertedAt > maxAgeMillis;
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000L;
+	}
+}
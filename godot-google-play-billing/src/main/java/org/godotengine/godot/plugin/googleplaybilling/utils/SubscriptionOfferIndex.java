@@ -0,0 +1,158 @@
+/*************************************************************************/
+/*  SubscriptionOfferIndex.java                                          */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import com.android.billingclient.api.ProductDetails;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Subscription offers of every queried product, indexed by base plan, offer ID and
+ * offer tag when product details arrive, so a purchase never has to scan the offer
+ * list. Products are re-indexed individually as their details are refreshed.
+ */
+public class SubscriptionOfferIndex {
+	private static final String ANY_BASE_PLAN = "";
+
+	private static class ProductOffers {
+		// The first offer listed for each base plan, matching the old linear lookup.
+		final Map<String, ProductDetails.SubscriptionOfferDetails> offersByBasePlanId = new HashMap<>();
+		final Map<String, ProductDetails.SubscriptionOfferDetails> offersByOfferKey = new HashMap<>();
+		final Map<String, ProductDetails.SubscriptionOfferDetails> offersByTag = new HashMap<>();
+		// Keyed by base plan ID, or ANY_BASE_PLAN for the cheapest offer overall.
+		final Map<String, ProductDetails.SubscriptionOfferDetails> cheapestOffersByBasePlanId = new HashMap<>();
+	}
+
+	private final ConcurrentHashMap<String, ProductOffers> offersByProductId = new ConcurrentHashMap<>();
+
+	public void update(List<ProductDetails> allProductDetails) {
+		if (allProductDetails == null) return;
+
+		for (int i = 0; i < allProductDetails.size(); i++) {
+			ProductDetails productDetails = allProductDetails.get(i);
+			List<ProductDetails.SubscriptionOfferDetails> allOfferDetails = productDetails.getSubscriptionOfferDetails();
+
+			if (allOfferDetails == null) {
+				offersByProductId.remove(productDetails.getProductId());
+			} else {
+				offersByProductId.put(productDetails.getProductId(), buildProductOffers(allOfferDetails));
+			}
+		}
+	}
+
+	public void clear() {
+		offersByProductId.clear();
+	}
+
+	public ProductDetails.SubscriptionOfferDetails getOfferByBasePlanId(String productId, String basePlanId) {
+		ProductOffers productOffers = offersByProductId.get(productId);
+		return productOffers == null ? null : productOffers.offersByBasePlanId.get(basePlanId);
+	}
+
+	// An empty or null offerId selects the base plan offer itself.
+	public ProductDetails.SubscriptionOfferDetails getOffer(String productId, String basePlanId, String offerId) {
+		ProductOffers productOffers = offersByProductId.get(productId);
+		return productOffers == null ? null : productOffers.offersByOfferKey.get(offerKey(basePlanId, offerId));
+	}
+
+	public ProductDetails.SubscriptionOfferDetails getOfferByTag(String productId, String offerTag) {
+		ProductOffers productOffers = offersByProductId.get(productId);
+		return productOffers == null ? null : productOffers.offersByTag.get(offerTag);
+	}
+
+	// Compares the price of the first pricing phase, i.e. what the user pays up front.
+	// An empty or null basePlanId considers the offers of every base plan.
+	public ProductDetails.SubscriptionOfferDetails getCheapestOffer(String productId, String basePlanId) {
+		ProductOffers productOffers = offersByProductId.get(productId);
+		if (productOffers == null) return null;
+
+		return productOffers.cheapestOffersByBasePlanId.get(basePlanId == null ? ANY_BASE_PLAN : basePlanId);
+	}
+
+	private static ProductOffers buildProductOffers(List<ProductDetails.SubscriptionOfferDetails> allOfferDetails) {
+		ProductOffers productOffers = new ProductOffers();
+
+		for (int i = 0; i < allOfferDetails.size(); i++) {
+			ProductDetails.SubscriptionOfferDetails offerDetails = allOfferDetails.get(i);
+			String basePlanId = offerDetails.getBasePlanId();
+
+			if (!productOffers.offersByBasePlanId.containsKey(basePlanId)) {
+				productOffers.offersByBasePlanId.put(basePlanId, offerDetails);
+			}
+
+			String offerKey = offerKey(basePlanId, offerDetails.getOfferId());
+			if (!productOffers.offersByOfferKey.containsKey(offerKey)) {
+				productOffers.offersByOfferKey.put(offerKey, offerDetails);
+			}
+
+			List<String> offerTags = offerDetails.getOfferTags();
+			if (offerTags != null) {
+				for (String offerTag : offerTags) {
+					if (!productOffers.offersByTag.containsKey(offerTag)) {
+						productOffers.offersByTag.put(offerTag, offerDetails);
+					}
+				}
+			}
+
+			long price = getInitialPriceAmountMicros(offerDetails);
+			if (price < 0) continue;
+
+			putIfCheaper(productOffers.cheapestOffersByBasePlanId, basePlanId, offerDetails, price);
+			putIfCheaper(productOffers.cheapestOffersByBasePlanId, ANY_BASE_PLAN, offerDetails, price);
+		}
+
+		return productOffers;
+	}
+
+	private static void putIfCheaper(Map<String, ProductDetails.SubscriptionOfferDetails> offers, String key, ProductDetails.SubscriptionOfferDetails offerDetails, long price) {
+		ProductDetails.SubscriptionOfferDetails current = offers.get(key);
+		if (current == null || price < getInitialPriceAmountMicros(current)) {
+			offers.put(key, offerDetails);
+		}
+	}
+
+	private static long getInitialPriceAmountMicros(ProductDetails.SubscriptionOfferDetails offerDetails) {
+		ProductDetails.PricingPhases pricingPhases = offerDetails.getPricingPhases();
+		if (pricingPhases == null) return -1;
+
+		List<ProductDetails.PricingPhase> pricingPhaseList = pricingPhases.getPricingPhaseList();
+		if (pricingPhaseList == null || pricingPhaseList.isEmpty()) return -1;
+
+		return pricingPhaseList.get(0).getPriceAmountMicros();
+	}
+
+	private static String offerKey(String basePlanId, String offerId) {
+		return basePlanId + "/" + (offerId == null ? "" : offerId);
+	}
+}
@@ -0,0 +1,193 @@
+/*************************************************************************/
+/*  TimerWheel.java                                                      */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timer wheel for the deadlines of in-flight billing calls. Scheduling and
+ * cancelling are O(1), each timeout is a single node linked into its slot, and one
+ * main-looper message drives the wheel, only while timeouts are pending. Expired
+ * tasks run on the main thread, outside of the wheel's lock.
+ *
+ * Ticks are counted from System.nanoTime() rather than from delivered messages, so
+ * a stalled main looper delays expiry but never pushes deadlines further out.
+ */
+public class TimerWheel {
+	public static final long DEFAULT_TICK_MILLIS = 100;
+	private static final int WHEEL_SIZE = 512; // Power of two, about 51 s per turn at 100 ms ticks.
+
+	public static final class Timeout {
+		private Runnable task;
+		private long deadlineTick;
+		private int slot = -1;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(Runnable task) {
+			this.task = task;
+		}
+	}
+
+	private final long tickNanos;
+	private final long startNanos = System.nanoTime();
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final Timeout[] slots = new Timeout[WHEEL_SIZE];
+	// The last tick whose slot has been expired.
+	private long currentTick;
+	private int size;
+	private boolean ticking;
+
+	private final Runnable tickRunnable = new Runnable() {
+		@Override
+		public void run() {
+			tick();
+		}
+	};
+
+	public TimerWheel() {
+		this(DEFAULT_TICK_MILLIS);
+	}
+
+	public TimerWheel(long tickMillis) {
+		this.tickNanos = tickMillis * 1000000L;
+	}
+
+	// The task runs on the main thread once delayMillis has passed, rounded up to the
+	// next tick, unless the returned timeout is cancelled first.
+	public synchronized Timeout schedule(Runnable task, long delayMillis) {
+		long elapsedNanos = System.nanoTime() - startNanos;
+		if (!ticking) {
+			ticking = true;
+			// Nothing is linked while idle, so the skipped slots are empty.
+			currentTick = elapsedNanos / tickNanos;
+			postNextTick(elapsedNanos);
+		}
+
+		Timeout timeout = new Timeout(task);
+		long deadlineNanos = elapsedNanos + Math.max(0, delayMillis) * 1000000L;
+		timeout.deadlineTick = Math.max(currentTick + 1, (deadlineNanos + tickNanos - 1) / tickNanos);
+		link(timeout);
+		return timeout;
+	}
+
+	// Returns true when the task was prevented from running, false when it already
+	// expired (or was cancelled before). Exactly one of cancel() and the task wins.
+	public synchronized boolean cancel(Timeout timeout) {
+		if (timeout == null || timeout.slot < 0) return false;
+
+		unlink(timeout);
+		timeout.task = null;
+		return true;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private void tick() {
+		List<Runnable> expiredTasks = new ArrayList<>();
+
+		synchronized (this) {
+			long elapsedNanos = System.nanoTime() - startNanos;
+			long targetTick = elapsedNanos / tickNanos;
+			// Catch up on ticks missed while the main thread was busy. One turn visits
+			// every slot, so a longer stall only needs the last turn.
+			if (targetTick - currentTick > WHEEL_SIZE) {
+				currentTick = targetTick - WHEEL_SIZE;
+			}
+			while (currentTick < targetTick) {
+				currentTick++;
+				expireSlot((int)(currentTick & (WHEEL_SIZE - 1)), expiredTasks);
+			}
+
+			if (size > 0) {
+				postNextTick(elapsedNanos);
+			} else {
+				ticking = false;
+			}
+		}
+
+		for (Runnable task : expiredTasks) {
+			task.run();
+		}
+	}
+
+	private void postNextTick(long elapsedNanos) {
+		long delayNanos = (currentTick + 1) * tickNanos - elapsedNanos;
+		handler.postDelayed(tickRunnable, Math.max(1, (delayNanos + 999999) / 1000000L));
+	}
+
+	private void expireSlot(int slot, List<Runnable> expiredTasks) {
+		Timeout timeout = slots[slot];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			// Timeouts more than one turn away share the slot until their turn comes.
+			if (timeout.deadlineTick <= currentTick) {
+				unlink(timeout);
+				expiredTasks.add(timeout.task);
+				timeout.task = null;
+			}
+			timeout = next;
+		}
+	}
+
+	private void link(Timeout timeout) {
+		int slot = (int)(timeout.deadlineTick & (WHEEL_SIZE - 1));
+		timeout.slot = slot;
+		timeout.prev = null;
+		timeout.next = slots[slot];
+		if (slots[slot] != null) {
+			slots[slot].prev = timeout;
+		}
+		slots[slot] = timeout;
+		size++;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			slots[timeout.slot] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.slot = -1;
+		size--;
+	}
+}
@@ -0,0 +1,254 @@
+/*************************************************************************/
+/*  GodotGooglePlayBillingTest.java                                      */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+
+package org.godotengine.godot.plugin.googleplaybilling;
+
+import android.os.Looper;
+
+import androidx.fragment.app.FragmentActivity;
+
+import org.godotengine.godot.Dictionary;
+import org.godotengine.godot.Godot;
+import org.godotengine.godot.plugin.googleplaybilling.backend.FakeBillingBackend;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import com.android.billingclient.api.BillingClient;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Drives the plugin against FakeBillingBackend. Signals go nowhere (Godot is mocked),
+ * so the tests observe the plugin through its synchronous getters and the journal.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GodotGooglePlayBillingTest {
+	private interface Condition {
+		boolean isMet();
+	}
+
+	// Each step advances the paused main looper clock by 10 ms, which runs the
+	// coalescing window and reconnect backoff without reaching the 20 s watchdog.
+	private static final int MAX_STEPS = 500;
+
+	private FakeBillingBackend billingBackend;
+	private GodotGooglePlayBilling plugin;
+
+	@Before
+	public void setUp() {
+		FragmentActivity activity = Robolectric.buildActivity(FragmentActivity.class).setup().get();
+		Godot godot = mock(Godot.class);
+		when(godot.getActivity()).thenReturn(activity);
+
+		billingBackend = new FakeBillingBackend(42);
+		billingBackend.setLatencyMillis(0, 5);
+		billingBackend.addSyntheticCatalog("coins_", BillingClient.ProductType.INAPP, 20);
+
+		plugin = new GodotGooglePlayBilling(godot, billingBackend.asFactory());
+		plugin.startConnection();
+		awaitCondition("connected", new Condition() {
+			@Override
+			public boolean isMet() {
+				return plugin.isReady();
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		plugin.onMainDestroy();
+		billingBackend.shutdown();
+	}
+
+	@Test
+	public void queryProductDetailsRecoversFromInjectedFailure() {
+		billingBackend.failNext(BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+		plugin.queryProductDetails(new String[] { "coins_0" }, new String[] { BillingClient.ProductType.INAPP });
+		awaitNoPendingRequests();
+
+		assertTrue(plugin.getProductDetails("coins_0").isEmpty());
+		assertTrue(journalContains("response", "query_product_details", BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE));
+
+		plugin.queryProductDetails(new String[] { "coins_0" }, new String[] { BillingClient.ProductType.INAPP });
+		awaitNoPendingRequests();
+
+		assertEquals("coins_0", plugin.getProductDetails("coins_0").get("product_id"));
+	}
+
+	@Test
+	public void requestsIssuedWhileDisconnectedRunAfterReconnect() {
+		billingBackend.simulateDisconnect();
+		assertFalse(plugin.isReady());
+		awaitCondition("disconnect reported", new Condition() {
+			@Override
+			public boolean isMet() {
+				return journalContains("disconnected", null, 0);
+			}
+		});
+
+		// Queued until the connection manager's backoff reconnects.
+		plugin.queryProductDetails(new String[] { "coins_1" }, new String[] { BillingClient.ProductType.INAPP });
+		awaitCondition("product details after reconnect", new Condition() {
+			@Override
+			public boolean isMet() {
+				return !plugin.getProductDetails("coins_1").isEmpty();
+			}
+		});
+
+		assertTrue(plugin.isReady());
+		assertEquals(0, plugin.getPendingRequestCount());
+		assertTrue((Long)plugin.getBillingMetrics().get("reconnects") >= 1);
+	}
+
+	@Test
+	public void requestsFailWhileDisconnectedWithoutAutoReconnect() {
+		plugin.setAutoReconnect(false);
+		billingBackend.simulateDisconnect();
+		awaitCondition("disconnect reported", new Condition() {
+			@Override
+			public boolean isMet() {
+				return journalContains("disconnected", null, 0);
+			}
+		});
+
+		// Failed with SERVICE_DISCONNECTED instead of waiting for a reconnect.
+		plugin.queryProductDetails(new String[] { "coins_2" }, new String[] { BillingClient.ProductType.INAPP });
+		awaitNoPendingRequests();
+		assertEquals(0L, plugin.getBillingMetrics().get("reconnects"));
+
+		plugin.startConnection();
+		awaitCondition("connected", new Condition() {
+			@Override
+			public boolean isMet() {
+				return plugin.isReady();
+			}
+		});
+		assertTrue(plugin.getProductDetails("coins_2").isEmpty());
+	}
+
+	@Test
+	public void requestsFailAfterNonRetryableSetupFailure() {
+		billingBackend.setSetupResponseCode(BillingClient.BillingResponseCode.BILLING_UNAVAILABLE);
+		billingBackend.simulateDisconnect();
+		awaitCondition("reconnect rejected", new Condition() {
+			@Override
+			public boolean isMet() {
+				return journalContains("setup_finished", "start_connection", BillingClient.BillingResponseCode.BILLING_UNAVAILABLE);
+			}
+		});
+
+		// No reconnect follows a non-retryable failure, so the request fails instead of
+		// waiting in the queue.
+		plugin.queryPurchases(BillingClient.ProductType.INAPP);
+		awaitNoPendingRequests();
+		assertFalse(plugin.isReady());
+
+		billingBackend.setSetupResponseCode(BillingClient.BillingResponseCode.OK);
+		plugin.startConnection();
+		awaitCondition("connected", new Condition() {
+			@Override
+			public boolean isMet() {
+				return plugin.isReady();
+			}
+		});
+	}
+
+	@Test
+	public void everyRequestCompletesUnderRandomFailures() {
+		billingBackend.setLatencyMillis(0, 20);
+		billingBackend.setFailureRate(0.3, BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+
+		for (int i = 0; i < 200; i++) {
+			plugin.queryPurchases(BillingClient.ProductType.INAPP);
+		}
+		awaitNoPendingRequests();
+
+		Dictionary operations = (Dictionary)plugin.getBillingMetrics().get("operations");
+		Dictionary queryPurchases = (Dictionary)operations.get("query_purchases");
+		assertNotNull(queryPurchases);
+		Dictionary responseCodes = (Dictionary)queryPurchases.get("response_codes");
+		long responses = 0;
+		for (Object count : responseCodes.values()) {
+			responses += (Long)count;
+		}
+		assertEquals(200, responses);
+		assertTrue(responseCodes.containsKey(String.valueOf(BillingClient.BillingResponseCode.OK)));
+		assertTrue(responseCodes.containsKey(String.valueOf(BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE)));
+	}
+
+	private void awaitNoPendingRequests() {
+		awaitCondition("no pending requests", new Condition() {
+			@Override
+			public boolean isMet() {
+				return plugin.getPendingRequestCount() == 0;
+			}
+		});
+	}
+
+	private static void awaitCondition(String description, Condition condition) {
+		for (int step = 0; step < MAX_STEPS; step++) {
+			shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(10));
+			if (condition.isMet()) return;
+			try {
+				Thread.sleep(5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		fail("Timed out waiting for " + description);
+	}
+
+	// A null operation matches any.
+	private boolean journalContains(String event, String operation, int code) {
+		for (Object entry : plugin.getBillingJournal()) {
+			Dictionary dictionary = (Dictionary)entry;
+			if (!event.equals(dictionary.get("event"))) continue;
+			if (operation != null && !operation.equals(dictionary.get("operation"))) continue;
+			if (operation != null && code != (Integer)dictionary.get("code")) continue;
+			return true;
+		}
+		return false;
+	}
+}
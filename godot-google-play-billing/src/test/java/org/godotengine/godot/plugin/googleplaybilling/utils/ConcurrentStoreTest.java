@@ -0,0 +1,130 @@
+/*************************************************************************/
+/*  ConcurrentStoreTest.java                                             */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+
+package org.godotengine.godot.plugin.googleplaybilling.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentStoreTest {
+	private static final int WRITERS = 8;
+	private static final int READERS = 4;
+	private static final int KEYS_PER_WRITER = 2000;
+
+	@Test
+	public void parallelPutGetRemoveAndSnapshot() throws Exception {
+		final ConcurrentStore<Integer> store = new ConcurrentStore<>();
+		final CountDownLatch startGate = new CountDownLatch(1);
+		final CountDownLatch writersDone = new CountDownLatch(WRITERS);
+		ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+		List<Future<?>> futures = new ArrayList<>();
+
+		try {
+			for (int w = 0; w < WRITERS; w++) {
+				final int writer = w;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						startGate.await();
+						try {
+							for (int i = 0; i < KEYS_PER_WRITER; i++) {
+								String key = writer + "-" + i;
+								store.put(key, i);
+								assertEquals(Integer.valueOf(i), store.get(key));
+								// Every odd key is removed again right away.
+								if (i % 2 == 1) {
+									assertEquals(Integer.valueOf(i), store.remove(key));
+									assertFalse(store.containsKey(key));
+								}
+							}
+						} finally {
+							writersDone.countDown();
+						}
+						return null;
+					}
+				}));
+			}
+
+			for (int r = 0; r < READERS; r++) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						startGate.await();
+						while (writersDone.getCount() > 0) {
+							// Iterating the snapshots while writers mutate the store must never throw.
+							for (String key : store.keySnapshot()) {
+								assertTrue(key.indexOf('-') > 0);
+							}
+							for (Integer value : store.snapshot()) {
+								assertTrue(value >= 0 && value < KEYS_PER_WRITER);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+
+			startGate.countDown();
+			for (Future<?> future : futures) {
+				// Rethrows assertion failures and ConcurrentModificationExceptions from the workers.
+				future.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(WRITERS * KEYS_PER_WRITER / 2, store.size());
+		assertEquals(WRITERS * KEYS_PER_WRITER / 2, store.snapshot().size());
+		for (int writer = 0; writer < WRITERS; writer++) {
+			for (int i = 0; i < KEYS_PER_WRITER; i++) {
+				String key = writer + "-" + i;
+				if (i % 2 == 0) {
+					assertEquals(Integer.valueOf(i), store.get(key));
+				} else {
+					assertNull(store.get(key));
+				}
+			}
+		}
+	}
+}
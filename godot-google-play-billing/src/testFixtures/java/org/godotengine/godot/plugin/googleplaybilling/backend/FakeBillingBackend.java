@@ -0,0 +1,525 @@
+/*************************************************************************/
+/*  FakeBillingBackend.java                                              */
+/*************************************************************************/
+/*                       This file is part of:                           */
+/*                           GODOT ENGINE                                */
+/*                      https://godotengine.org                          */
+/*************************************************************************/
+/* Copyright (c) 2007-2020 Juan Linietsky, Ariel Manzur.                 */
+/* Copyright (c) 2014-2020 Godot Engine contributors (cf. AUTHORS.md).   */
+/*                                                                       */
+/* Permission is hereby granted, free of charge, to any person obtaining */
+/* a copy of this software and associated documentation files (the       */
+/* "Software"), to deal in the Software without restriction, including   */
+/* without limitation the rights to use, copy, modify, merge, publish,   */
+/* distribute, sublicense, and/or sell copies of the Software, and to    */
+/* permit persons to whom the Software is furnished to do so, subject to */
+/* the following conditions:                                             */
+/*                                                                       */
+/* The above copyright notice and this permission notice shall be        */
+/* included in all copies or substantial portions of the Software.       */
+/*                                                                       */
+/* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       */
+/* EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    */
+/* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*/
+/* IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY  */
+/* CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,  */
+/* TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE     */
+/* SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.                */
+/*************************************************************************/
+
+package org.godotengine.godot.plugin.googleplaybilling.backend;
+
+import android.app.Activity;
+import android.content.Context;
+
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.ProductDetails;
+import com.android.billingclient.api.ProductDetailsResponseListener;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deterministic in-memory BillingBackend for JVM tests. Every callback is delivered
+ * on a single worker thread after a latency drawn from a seeded Random, so a run can
+ * be replayed exactly. Catalogs, failures and disconnects are set up by the test.
+ */
+public class FakeBillingBackend implements BillingBackend {
+	private static class CatalogEntry {
+		final String productType;
+		final ProductDetails productDetails;
+
+		CatalogEntry(String productType, ProductDetails productDetails) {
+			this.productType = productType;
+			this.productDetails = productDetails;
+		}
+	}
+
+	private static class OwnedPurchase {
+		final String productType;
+		final Purchase purchase;
+
+		OwnedPurchase(String productType, Purchase purchase) {
+			this.productType = productType;
+			this.purchase = purchase;
+		}
+	}
+
+	private static Constructor<ProductDetails> productDetailsConstructor;
+
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+	private final Random random;
+	private final Map<String, CatalogEntry> catalogByProductId = new LinkedHashMap<>();
+	private final Map<String, OwnedPurchase> purchasesByPurchaseToken = new LinkedHashMap<>();
+	private final List<Integer> queuedFailures = new ArrayList<>();
+	private final AtomicInteger requestCount = new AtomicInteger();
+	private final AtomicInteger purchaseCount = new AtomicInteger();
+
+	private PurchasesUpdatedListener purchasesUpdatedListener;
+	private BillingClientStateListener stateListener;
+	private int connectionState = BillingClient.ConnectionState.DISCONNECTED;
+	private int setupResponseCode = BillingClient.BillingResponseCode.OK;
+	private long minLatencyMillis;
+	private long maxLatencyMillis;
+	private double failureRate;
+	private int failureResponseCode = BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE;
+	private boolean pendingPurchases;
+
+	public FakeBillingBackend(long seed) {
+		random = new Random(seed);
+	}
+
+	// Returns a factory that hands this instance to the plugin, so a test can keep a reference to it.
+	public Factory asFactory() {
+		return new Factory() {
+			@Override
+			public BillingBackend create(Context context, PurchasesUpdatedListener purchasesUpdatedListener) {
+				synchronized (FakeBillingBackend.this) {
+					FakeBillingBackend.this.purchasesUpdatedListener = purchasesUpdatedListener;
+				}
+				return FakeBillingBackend.this;
+			}
+		};
+	}
+
+	public synchronized void setPurchasesUpdatedListener(PurchasesUpdatedListener purchasesUpdatedListener) {
+		this.purchasesUpdatedListener = purchasesUpdatedListener;
+	}
+
+	public synchronized void setLatencyMillis(long minLatencyMillis, long maxLatencyMillis) {
+		this.minLatencyMillis = minLatencyMillis;
+		this.maxLatencyMillis = Math.max(minLatencyMillis, maxLatencyMillis);
+	}
+
+	// Fails every request with the given probability once connected.
+	public synchronized void setFailureRate(double failureRate, int responseCode) {
+		this.failureRate = failureRate;
+		this.failureResponseCode = responseCode;
+	}
+
+	// Fails the next request (connection attempts included) with responseCode.
+	public synchronized void failNext(int responseCode) {
+		queuedFailures.add(responseCode);
+	}
+
+	public synchronized void setSetupResponseCode(int setupResponseCode) {
+		this.setupResponseCode = setupResponseCode;
+	}
+
+	// New purchases start out PENDING instead of PURCHASED.
+	public synchronized void setPendingPurchases(boolean pendingPurchases) {
+		this.pendingPurchases = pendingPurchases;
+	}
+
+	public int getRequestCount() {
+		return requestCount.get();
+	}
+
+	public synchronized void addProduct(String productId, String productType, long priceAmountMicros) {
+		catalogByProductId.put(productId, new CatalogEntry(productType, createProductDetails(productId, productType, priceAmountMicros)));
+	}
+
+	// Adds count products named <prefix>_0, <prefix>_1, ... with prices spread between 0.99 and 99.99.
+	public synchronized void addSyntheticCatalog(String prefix, String productType, int count) {
+		for (int i = 0; i < count; i++) {
+			long priceAmountMicros = 990000L + (random.nextInt(100) * 1000000L);
+			addProduct(prefix + "_" + i, productType, priceAmountMicros);
+		}
+	}
+
+	public synchronized void clearCatalog() {
+		catalogByProductId.clear();
+	}
+
+	// Adds an owned purchase as if it had been bought on another device.
+	public Purchase addPurchase(String productId) {
+		OwnedPurchase ownedPurchase;
+		synchronized (this) {
+			ownedPurchase = createPurchase(productId, false);
+			purchasesByPurchaseToken.put(ownedPurchase.purchase.getPurchaseToken(), ownedPurchase);
+		}
+		return ownedPurchase.purchase;
+	}
+
+	// Moves a pending purchase to PURCHASED and reports it through onPurchasesUpdated.
+	public void completePendingPurchase(final String purchaseToken) {
+		final Purchase purchase;
+		synchronized (this) {
+			OwnedPurchase ownedPurchase = purchasesByPurchaseToken.get(purchaseToken);
+			if (ownedPurchase == null) return;
+			purchase = rebuildPurchase(ownedPurchase.purchase, 0, ownedPurchase.purchase.isAcknowledged());
+			purchasesByPurchaseToken.put(purchaseToken, new OwnedPurchase(ownedPurchase.productType, purchase));
+		}
+		deliverPurchasesUpdated(okResult(), singletonList(purchase));
+	}
+
+	// Drops the connection the way Play does when its service dies.
+	public void simulateDisconnect() {
+		final BillingClientStateListener listener;
+		synchronized (this) {
+			if (connectionState != BillingClient.ConnectionState.CONNECTED) return;
+			connectionState = BillingClient.ConnectionState.DISCONNECTED;
+			listener = stateListener;
+		}
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				listener.onBillingServiceDisconnected();
+			}
+		});
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Override
+	public void startConnection(final BillingClientStateListener listener) {
+		final BillingResult billingResult;
+		synchronized (this) {
+			stateListener = listener;
+			connectionState = BillingClient.ConnectionState.CONNECTING;
+			Integer failure = nextFailure();
+			billingResult = failure != null ? result(failure, "Injected setup failure") : result(setupResponseCode, "");
+		}
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (FakeBillingBackend.this) {
+					if (connectionState != BillingClient.ConnectionState.CONNECTING) return;
+					connectionState = billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK
+							? BillingClient.ConnectionState.CONNECTED
+							: BillingClient.ConnectionState.DISCONNECTED;
+				}
+				listener.onBillingSetupFinished(billingResult);
+			}
+		});
+	}
+
+	@Override
+	public synchronized void endConnection() {
+		connectionState = BillingClient.ConnectionState.CLOSED;
+	}
+
+	@Override
+	public synchronized boolean isReady() {
+		return connectionState == BillingClient.ConnectionState.CONNECTED;
+	}
+
+	@Override
+	public synchronized int getConnectionState() {
+		return connectionState;
+	}
+
+	@Override
+	public void queryProductDetails(final String productType, List<String> productIds, final ProductDetailsResponseListener listener) {
+		final BillingResult billingResult;
+		final List<ProductDetails> productDetailsList = new ArrayList<>();
+		synchronized (this) {
+			billingResult = checkRequest();
+			if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+				for (String productId : productIds) {
+					CatalogEntry entry = catalogByProductId.get(productId);
+					if (entry != null && entry.productType.equals(productType)) {
+						productDetailsList.add(entry.productDetails);
+					}
+				}
+			}
+		}
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				listener.onProductDetailsResponse(billingResult, productDetailsList);
+			}
+		});
+	}
+
+	@Override
+	public void queryPurchases(String productType, final PurchasesResponseListener listener) {
+		final BillingResult billingResult;
+		final List<Purchase> purchases = new ArrayList<>();
+		synchronized (this) {
+			billingResult = checkRequest();
+			if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+				for (OwnedPurchase ownedPurchase : purchasesByPurchaseToken.values()) {
+					if (ownedPurchase.productType.equals(productType)) {
+						purchases.add(ownedPurchase.purchase);
+					}
+				}
+			}
+		}
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				listener.onQueryPurchasesResponse(billingResult, purchases);
+			}
+		});
+	}
+
+	@Override
+	public void acknowledgePurchase(String purchaseToken, final AcknowledgePurchaseResponseListener listener) {
+		final BillingResult billingResult;
+		synchronized (this) {
+			BillingResult checked = checkRequest();
+			OwnedPurchase ownedPurchase = purchasesByPurchaseToken.get(purchaseToken);
+			if (checked.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+				billingResult = checked;
+			} else if (ownedPurchase == null) {
+				billingResult = result(BillingClient.BillingResponseCode.ITEM_NOT_OWNED, "Unknown purchase token");
+			} else {
+				Purchase purchase = rebuildPurchase(ownedPurchase.purchase, purchaseStateOf(ownedPurchase.purchase), true);
+				purchasesByPurchaseToken.put(purchaseToken, new OwnedPurchase(ownedPurchase.productType, purchase));
+				billingResult = checked;
+			}
+		}
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				listener.onAcknowledgePurchaseResponse(billingResult);
+			}
+		});
+	}
+
+	@Override
+	public void consumePurchase(final String purchaseToken, final ConsumeResponseListener listener) {
+		final BillingResult billingResult;
+		synchronized (this) {
+			BillingResult checked = checkRequest();
+			if (checked.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+				billingResult = checked;
+			} else if (purchasesByPurchaseToken.remove(purchaseToken) == null) {
+				billingResult = result(BillingClient.BillingResponseCode.ITEM_NOT_OWNED, "Unknown purchase token");
+			} else {
+				billingResult = checked;
+			}
+		}
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				listener.onConsumeResponse(billingResult, purchaseToken);
+			}
+		});
+	}
+
+	@Override
+	public BillingResult launchBillingFlow(Activity activity, BillingFlowParams billingFlowParams, List<String> productIds) {
+		final List<Purchase> purchases = new ArrayList<>();
+		synchronized (this) {
+			BillingResult billingResult = checkRequest();
+			if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+				return billingResult;
+			}
+			for (String productId : productIds) {
+				if (!catalogByProductId.containsKey(productId)) {
+					return result(BillingClient.BillingResponseCode.ITEM_UNAVAILABLE, "Unknown product " + productId);
+				}
+			}
+			for (String productId : productIds) {
+				OwnedPurchase ownedPurchase = createPurchase(productId, pendingPurchases);
+				purchasesByPurchaseToken.put(ownedPurchase.purchase.getPurchaseToken(), ownedPurchase);
+				purchases.add(ownedPurchase.purchase);
+			}
+		}
+		deliverPurchasesUpdated(okResult(), purchases);
+		return okResult();
+	}
+
+	private void deliverPurchasesUpdated(final BillingResult billingResult, final List<Purchase> purchases) {
+		final PurchasesUpdatedListener listener;
+		synchronized (this) {
+			listener = purchasesUpdatedListener;
+		}
+		if (listener == null) return;
+
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				listener.onPurchasesUpdated(billingResult, purchases);
+			}
+		});
+	}
+
+	// Must be called with the lock held.
+	private BillingResult checkRequest() {
+		requestCount.incrementAndGet();
+
+		if (connectionState != BillingClient.ConnectionState.CONNECTED) {
+			return result(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED, "Fake billing backend is not connected");
+		}
+		Integer failure = nextFailure();
+		if (failure != null) {
+			return result(failure, "Injected failure");
+		}
+		if (failureRate > 0 && random.nextDouble() < failureRate) {
+			return result(failureResponseCode, "Injected random failure");
+		}
+		return okResult();
+	}
+
+	// Must be called with the lock held.
+	private Integer nextFailure() {
+		return queuedFailures.isEmpty() ? null : queuedFailures.remove(0);
+	}
+
+	private void schedule(Runnable runnable) {
+		long delay;
+		synchronized (this) {
+			delay = minLatencyMillis;
+			if (maxLatencyMillis > minLatencyMillis) {
+				delay += (long)(random.nextDouble() * (maxLatencyMillis - minLatencyMillis));
+			}
+		}
+		executor.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+	}
+
+	// Must be called with the lock held.
+	private OwnedPurchase createPurchase(String productId, boolean pending) {
+		CatalogEntry entry = catalogByProductId.get(productId);
+		String productType = entry != null ? entry.productType : BillingClient.ProductType.INAPP;
+		int id = purchaseCount.incrementAndGet();
+
+		try {
+			JSONArray productIds = new JSONArray();
+			productIds.put(productId);
+
+			JSONObject json = new JSONObject();
+			json.put("orderId", "GPA.0000-0000-0000-" + id);
+			json.put("packageName", "org.godotengine.fake");
+			json.put("productIds", productIds);
+			json.put("purchaseTime", System.currentTimeMillis());
+			// Play reports purchaseState 0 for purchased and 4 for pending purchases.
+			json.put("purchaseState", pending ? 4 : 0);
+			json.put("purchaseToken", String.format(Locale.US, "fake-token-%08d", id));
+			json.put("quantity", 1);
+			json.put("acknowledged", false);
+			json.put("autoRenewing", BillingClient.ProductType.SUBS.equals(productType));
+			return new OwnedPurchase(productType, new Purchase(json.toString(), "fake-signature-" + id));
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static int purchaseStateOf(Purchase purchase) {
+		return purchase.getPurchaseState() == Purchase.PurchaseState.PENDING ? 4 : 0;
+	}
+
+	private static Purchase rebuildPurchase(Purchase purchase, int purchaseState, boolean acknowledged) {
+		try {
+			JSONObject json = new JSONObject(purchase.getOriginalJson());
+			json.put("purchaseState", purchaseState);
+			json.put("acknowledged", acknowledged);
+			return new Purchase(json.toString(), purchase.getSignature());
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static ProductDetails createProductDetails(String productId, String productType, long priceAmountMicros) {
+		try {
+			JSONObject price = new JSONObject();
+			price.put("priceAmountMicros", priceAmountMicros);
+			price.put("priceCurrencyCode", "USD");
+			price.put("formattedPrice", String.format(Locale.US, "$%.2f", priceAmountMicros / 1000000.0));
+
+			JSONObject json = new JSONObject();
+			json.put("productId", productId);
+			json.put("type", productType);
+			json.put("title", productId + " (Godot Fake)");
+			json.put("name", productId);
+			json.put("description", "Synthetic product " + productId);
+
+			if (BillingClient.ProductType.SUBS.equals(productType)) {
+				price.put("billingPeriod", "P1M");
+				price.put("recurrenceMode", 1);
+				price.put("billingCycleCount", 0);
+
+				JSONArray pricingPhases = new JSONArray();
+				pricingPhases.put(price);
+
+				JSONObject offer = new JSONObject();
+				offer.put("basePlanId", "monthly");
+				offer.put("offerIdToken", "fake-offer-token-" + productId);
+				offer.put("offerTags", new JSONArray());
+				offer.put("pricingPhases", pricingPhases);
+
+				JSONArray offers = new JSONArray();
+				offers.put(offer);
+				json.put("subscriptionOfferDetails", offers);
+			} else {
+				json.put("oneTimePurchaseOfferDetails", price);
+			}
+
+			return getProductDetailsConstructor().newInstance(json.toString());
+		} catch (ReflectiveOperationException | JSONException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// ProductDetails only has a package-private JSON constructor.
+	private static synchronized Constructor<ProductDetails> getProductDetailsConstructor() throws NoSuchMethodException {
+		if (productDetailsConstructor == null) {
+			productDetailsConstructor = ProductDetails.class.getDeclaredConstructor(String.class);
+			productDetailsConstructor.setAccessible(true);
+		}
+		return productDetailsConstructor;
+	}
+
+	private static List<Purchase> singletonList(Purchase purchase) {
+		List<Purchase> purchases = new ArrayList<>();
+		purchases.add(purchase);
+		return purchases;
+	}
+
+	private static BillingResult okResult() {
+		return result(BillingClient.BillingResponseCode.OK, "");
+	}
+
+	private static BillingResult result(int responseCode, String debugMessage) {
+		return BillingResult.newBuilder()
+				.setResponseCode(responseCode)
+				.setDebugMessage(debugMessage)
+				.build();
+	}
+}
@@ -0,0 +1,115 @@
+# Decodes the PoolByteArray emitted with product_details_query_completed_compact
+# and returned by getCompactProductDetails() after setCompactProductDetails(true).
+#
+# decode() returns the same Array of product details Dictionaries as
+# product_details_query_completed, so existing store code keeps working:
+#
+#     const Compact = preload("res://android/plugins/google_play_billing_compact.gd")
+#
+#     func _on_product_details_query_completed_compact(billing_result, data):
+#         var product_details = Compact.decode(data)
+#
+# The format is described in CompactProductDetailsEncoder.java.
+extends Reference
+
+const MAGIC = 0x47504344 # "GPCD"
+const VERSION = 1
+
+const FLAG_ONE_TIME_PURCHASE_OFFER = 1
+const FLAG_SUBSCRIPTION_OFFERS = 2
+
+
+static func decode(data: PoolByteArray) -> Array:
+	var buffer = StreamPeerBuffer.new()
+	buffer.big_endian = true
+	buffer.data_array = data
+
+	if buffer.get_u32() != MAGIC or buffer.get_u8() != VERSION:
+		push_error("google_play_billing_compact: unknown format")
+		return []
+
+	var strings = []
+	strings.resize(buffer.get_u32())
+	for i in strings.size():
+		strings[i] = buffer.get_utf8_string()
+
+	var all_product_details = []
+	all_product_details.resize(buffer.get_u32())
+	for i in all_product_details.size():
+		all_product_details[i] = _read_product_details(buffer, strings)
+
+	return all_product_details
+
+
+static func _read_product_details(buffer: StreamPeerBuffer, strings: Array) -> Dictionary:
+	var product_details = {
+		"product_id": _read_string(buffer, strings),
+		"product_type": _read_string(buffer, strings),
+		"title": _read_string(buffer, strings),
+		"name": _read_string(buffer, strings),
+		"description": _read_string(buffer, strings),
+		"one_time_purchase_offer_details": {},
+		"subscription_offer_details": [],
+	}
+
+	var flags = buffer.get_u8()
+
+	if flags & FLAG_ONE_TIME_PURCHASE_OFFER:
+		product_details["one_time_purchase_offer_details"] = {
+			"price_amount_micros": buffer.get_64(),
+			"formatted_price": _read_string(buffer, strings),
+			"price_currency_code": _read_string(buffer, strings),
+		}
+
+	if flags & FLAG_SUBSCRIPTION_OFFERS:
+		var offers = []
+		offers.resize(buffer.get_u16())
+		for i in offers.size():
+			offers[i] = _read_subscription_offer_details(buffer, strings)
+		product_details["subscription_offer_details"] = offers
+
+	return product_details
+
+
+static func _read_subscription_offer_details(buffer: StreamPeerBuffer, strings: Array) -> Dictionary:
+	var offer = {
+		"base_plan_id": _read_string(buffer, strings),
+		"offer_id": _read_string(buffer, strings),
+		"offer_token": _read_string(buffer, strings),
+	}
+
+	var offer_tags = []
+	offer_tags.resize(buffer.get_u16())
+	for i in offer_tags.size():
+		offer_tags[i] = _read_string(buffer, strings)
+	offer["offer_tags"] = offer_tags
+
+	var has_installment_plan = buffer.get_u8() != 0
+	var commitment_payments_count = buffer.get_32()
+	var subsequent_commitment_payments_count = buffer.get_32()
+	offer["installment_plan_details"] = {}
+	if has_installment_plan:
+		offer["installment_plan_details"] = {
+			"installment_plan_commitment_payments_count": commitment_payments_count,
+			"subsequent_installment_plan_commitment_payments_count": subsequent_commitment_payments_count,
+		}
+
+	var pricing_phase_list = []
+	pricing_phase_list.resize(buffer.get_u16())
+	for i in pricing_phase_list.size():
+		pricing_phase_list[i] = {
+			"billing_cycle_count": buffer.get_32(),
+			"billing_period": _read_string(buffer, strings),
+			"formatted_price": _read_string(buffer, strings),
+			"price_amount_micros": buffer.get_64(),
+			"price_currency_code": _read_string(buffer, strings),
+			"recurrence_mode": buffer.get_32(),
+		}
+	offer["pricing_phases"] = { "pricing_phase_list": pricing_phase_list }
+
+	return offer
+
+
+static func _read_string(buffer: StreamPeerBuffer, strings: Array):
+	var index = buffer.get_32()
+	return null if index < 0 else strings[index]